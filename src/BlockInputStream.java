@@ -0,0 +1,118 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the blocks written by {@link BlockOutputStream}, inflating deflated ones.
+ */
+public class BlockInputStream extends InputStream {
+    private final DataInputStream in;
+    private final ConnectionStats stats;
+    private final Inflater inflater = new Inflater();
+    private byte[] block = new byte[4096];
+    private byte[] compressed = new byte[4096];
+    private int position;
+    private int limit;
+
+    public BlockInputStream(InputStream in, ConnectionStats stats) {
+        this.in = new DataInputStream(in);
+        this.stats = stats;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !nextBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == limit && !nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(length, limit - position);
+        System.arraycopy(block, position, bytes, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return false;
+        }
+        int length = in.readInt();
+        if (length <= 0 || length > BlockOutputStream.MAX_BLOCK_BYTES) {
+            throw new StreamCorruptedException("Bad block length " + length);
+        }
+        if (block.length < length) {
+            block = new byte[Math.max(length, block.length * 2)];
+        }
+        if (type == BlockOutputStream.RAW) {
+            in.readFully(block, 0, length);
+        } else if (type == BlockOutputStream.DEFLATED) {
+            int compressedLength = in.readInt();
+            if (compressedLength <= 0 || compressedLength > 2 * BlockOutputStream.MAX_BLOCK_BYTES) {
+                throw new StreamCorruptedException("Bad compressed length " + compressedLength);
+            }
+            if (compressed.length < compressedLength) {
+                compressed = new byte[Math.max(compressedLength, compressed.length * 2)];
+            }
+            in.readFully(compressed, 0, compressedLength);
+            inflate(compressedLength, length);
+        } else {
+            throw new StreamCorruptedException("Unknown block type " + type);
+        }
+        stats.payloadIn.addAndGet(length);
+        position = 0;
+        limit = length;
+        return true;
+    }
+
+    private void inflate(int compressedLength, int length) throws IOException {
+        inflater.setInput(compressed, 0, compressedLength);
+        int inflated = 0;
+        try {
+            while (inflated < length) {
+                int n = inflater.inflate(block, inflated, length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Deflated block ended early");
+                }
+                inflated += n;
+            }
+            // Consume the rest of the block, i.e. the empty block a sync flush ends with
+            byte[] spare = new byte[1];
+            while (inflater.getRemaining() > 0) {
+                int remaining = inflater.getRemaining();
+                if (inflater.inflate(spare) > 0) {
+                    throw new StreamCorruptedException("Deflated block longer than " + length + " bytes");
+                }
+                if (inflater.getRemaining() == remaining) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Bad deflated block: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Collects writes into blocks and sends each block either as is or deflated.
+ *
+ * A block ends at every flush, which RMI does at the end of each call and return,
+ * or when the buffer fills. Blocks shorter than the threshold, such as a typical
+ * chat line, go out uncompressed so they cost no extra latency; larger ones, such
+ * as history pages, are deflated. Deflated blocks share one compression stream per
+ * connection, so later blocks benefit from what earlier ones contained.
+ *
+ * A raw block is a type byte, the length and the bytes. A deflated block adds the
+ * compressed length before the compressed bytes. The header shares a buffer with
+ * the data so each block is a single write to the socket.
+ */
+public class BlockOutputStream extends OutputStream {
+    static final int RAW = 0;
+    static final int DEFLATED = 1;
+    static final int MAX_BLOCK_BYTES = 64 * 1024;
+    private static final int RAW_HEADER = 5;
+    private static final int DEFLATED_HEADER = 9;
+
+    private final OutputStream out;
+    private final int threshold;
+    private final ConnectionStats stats;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] buffer = new byte[RAW_HEADER + MAX_BLOCK_BYTES];
+    private byte[] compressed = new byte[DEFLATED_HEADER + 4096];
+    private int count = RAW_HEADER;
+
+    public BlockOutputStream(OutputStream out, int threshold, ConnectionStats stats) {
+        this.out = out;
+        this.threshold = threshold;
+        this.stats = stats;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeBlock();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == buffer.length) {
+                writeBlock();
+            }
+            int n = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        int length = count - RAW_HEADER;
+        if (length == 0) {
+            return;
+        }
+        stats.payloadOut.addAndGet(length);
+        if (length < threshold) {
+            buffer[0] = RAW;
+            putInt(buffer, 1, length);
+            out.write(buffer, 0, count);
+        } else {
+            deflater.setInput(buffer, RAW_HEADER, length);
+            int size = DEFLATED_HEADER;
+            while (true) {
+                size += deflater.deflate(compressed, size, compressed.length - size, Deflater.SYNC_FLUSH);
+                if (size < compressed.length) {
+                    break;
+                }
+                // Output filled the buffer, so there may be more; grow and continue
+                byte[] larger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, larger, 0, size);
+                compressed = larger;
+            }
+            compressed[0] = DEFLATED;
+            putInt(compressed, 1, length);
+            putInt(compressed, 5, size - DEFLATED_HEADER);
+            out.write(compressed, 0, size);
+        }
+        count = RAW_HEADER;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the delivery executor and fans broadcast messages out to client mailboxes,
+ * so no remote call is ever made while the service lock is held.
+ *
+ * Each mailbox delivers in FIFO order on its own task, which keeps every sender's
+ * messages in order per client. Completion latency is measured from the moment a
+ * broadcast is accepted until the last mailbox has delivered or dropped it.
+ *
+ * Deliveries run either on a fixed pool of platform threads or, since they spend
+ * nearly all their time blocked on a socket, on one virtual thread per task.
+ */
+public class BroadcastDispatcher {
+    private static final long SLOW_BROADCAST_MILLIS = 500;
+    private static final long SUMMARY_INTERVAL = 1000;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    // Completion latency statistics
+    private final AtomicLong completedBroadcasts = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * Tracks one broadcast until every recipient mailbox has finished with it.
+     */
+    public class Completion {
+        private final long start = System.nanoTime();
+        private final int recipientCount;
+        private final AtomicInteger remaining;
+
+        Completion(int recipientCount) {
+            this.recipientCount = recipientCount;
+            this.remaining = new AtomicInteger(recipientCount);
+        }
+
+        public void done() {
+            if (remaining.decrementAndGet() == 0) {
+                recordLatency(System.nanoTime() - start, recipientCount);
+            }
+        }
+    }
+
+    public BroadcastDispatcher(ServerConfig config) {
+        if (config.useVirtualThreads()) {
+            this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("broadcast-", 1).factory());
+        } else {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(config.getDispatcherThreads(), r -> {
+                Thread t = new Thread(r, "broadcast-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "broadcast-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Runs a task on the delivery executor after the given delay.
+     */
+    public void executeLater(Runnable task, long delayMillis) {
+        scheduler.schedule(() -> executor.execute(task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a message on every recipient mailbox and returns immediately.
+     */
+    public void broadcast(ChatMessage message, Collection<ClientMailbox> recipients) {
+        if (recipients.isEmpty()) {
+            return;
+        }
+        Completion completion = new Completion(recipients.size());
+        for (ClientMailbox mailbox : recipients) {
+            mailbox.offer(message, completion);
+        }
+    }
+
+    private void recordLatency(long nanos, int recipientCount) {
+        long count = completedBroadcasts.incrementAndGet();
+        totalLatencyNanos.addAndGet(nanos);
+        maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (millis >= SLOW_BROADCAST_MILLIS) {
+            System.out.println("Slow broadcast: " + millis + " ms to reach " + recipientCount + " clients");
+        }
+        if (count % SUMMARY_INTERVAL == 0) {
+            System.out.println("Broadcast latency: " + getLatencySummary());
+        }
+    }
+
+    public String getLatencySummary() {
+        long count = completedBroadcasts.get();
+        double avgMillis = count == 0 ? 0 : totalLatencyNanos.get() / (double) count / 1_000_000;
+        double maxMillis = maxLatencyNanos.get() / 1_000_000.0;
+        return String.format("%d broadcasts, avg %.2f ms, max %.2f ms", count, avgMillis, maxMillis);
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+        executor.shutdown();
+    }
+}
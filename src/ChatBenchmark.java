@@ -0,0 +1,545 @@
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.font.TextAttribute;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.swing.JComponent;
+import javax.swing.JTextPane;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+
+/**
+ * Stand-alone server benchmarks. Run with {@code java ChatBenchmark <mode>}.
+ *
+ * fanout: delivers broadcasts to 1k, 5k and 10k simulated clients whose callbacks
+ * block for a simulated network round trip, once on the platform pool and once on
+ * virtual threads, and reports throughput, peak heap and peak thread count.
+ *
+ * log: appends messages to a fresh {@link MessageLog} from several threads, then
+ * reopens it and replays it, and reports append rate, messages per fsync, recovery
+ * time and replay rate.
+ *
+ * alloc: builds the outbound data for broadcasts to 100 and 1k recipients three
+ * ways: Java serialization of the receiveMessage arguments per recipient, as RMI
+ * marshals them for every stub; one {@link WireProtocol} frame per recipient; and
+ * shared frames that encode the message once. Reports bytes allocated and time per
+ * broadcast.
+ *
+ * wire: serializes and deserializes batches of room messages with default Java
+ * serialization of the old message fields, with the Externalizable
+ * {@link ChatMessage} in a plain list, and as a {@link MessageBatch}, and reports
+ * bytes per message and the cost of a round trip through the streams.
+ *
+ * tls: makes a self-signed key store with keytool, serves it through
+ * {@link TlsSocketFactory}, and connects repeatedly with one shared client context,
+ * which resumes sessions, and with a fresh context per connection, which cannot.
+ * Reports full handshakes on the server and the mean connect latency.
+ *
+ * transcript: fills a {@link Transcript} and a text pane document with the same 100k
+ * messages, some long enough to wrap and some over several lines, and scrolls each
+ * through an 800x600 viewport painted off screen. Reports the time to build, the heap
+ * the messages hold on to, and the time per frame. Runs headless.
+ */
+public class ChatBenchmark {
+    private static final int[] CLIENT_COUNTS = { 1_000, 5_000, 10_000 };
+    private static final int BROADCASTS = 20;
+    private static final int ROUND_TRIP_MILLIS = 5;
+    private static final int LOG_MESSAGES = 1_000_000;
+    private static final int LOG_WRITERS = 8;
+    private static final int[] RECIPIENT_COUNTS = { 100, 1_000 };
+    private static final int ALLOC_BROADCASTS = 2_000;
+    private static final int[] BATCH_SIZES = { 1, 64 };
+    private static final int WIRE_SENDERS = 8;
+    private static final int WIRE_ROUNDS = 20_000;
+    private static final int TLS_CONNECTIONS = 200;
+    private static final String TLS_PASSWORD = "benchmark";
+    private static final int TRANSCRIPT_MESSAGES = 100_000;
+    private static final int TRANSCRIPT_FRAMES = 500;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "fanout";
+        switch (mode) {
+            case "fanout" -> runFanout();
+            case "log" -> runLog();
+            case "alloc" -> runAlloc();
+            case "wire" -> runWire();
+            case "tls" -> runTls();
+            case "transcript" -> SwingUtilities.invokeAndWait(() -> runTranscript());
+            default -> System.out.println("Usage: java ChatBenchmark fanout|log|alloc|wire|tls|transcript");
+        }
+    }
+
+    private static void runFanout() throws Exception {
+        System.out.printf("%-9s %7s %12s %12s %10s %9s%n",
+                "executor", "clients", "msgs/s", "calls/s", "heap MB", "threads");
+        for (int clients : CLIENT_COUNTS) {
+            for (String executor : new String[] { "platform", "virtual" }) {
+                runFanout(executor, clients);
+            }
+        }
+    }
+
+    private static void runFanout(String executor, int clientCount) throws Exception {
+        ServerConfig config = ServerConfig.fromArgs(new String[] { "--executor=" + executor });
+        BroadcastDispatcher dispatcher = new BroadcastDispatcher(config);
+        PresenceTracker presence = new PresenceTracker();
+        AtomicLong delivered = new AtomicLong();
+        AtomicLong calls = new AtomicLong();
+
+        List<ClientMailbox> mailboxes = new ArrayList<>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            SimulatedClient client = new SimulatedClient(delivered, calls);
+            mailboxes.add(new ClientMailbox("client" + i, client, config, dispatcher, presence));
+        }
+
+        System.gc();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long baseHeap = usedHeap();
+        long peakHeap = baseHeap;
+
+        long expected = (long) clientCount * BROADCASTS;
+        long start = System.nanoTime();
+        for (int i = 0; i < BROADCASTS; i++) {
+            dispatcher.broadcast(new ChatMessage("bench", "message " + i, false), mailboxes);
+            Thread.sleep(ROUND_TRIP_MILLIS);
+        }
+        while (delivered.get() < expected) {
+            peakHeap = Math.max(peakHeap, usedHeap());
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-9s %7d %12.0f %12.0f %10.1f %9d%n", executor, clientCount,
+                expected / seconds, calls.get() / seconds,
+                (peakHeap - baseHeap) / (1024.0 * 1024.0), threads.getPeakThreadCount());
+        dispatcher.shutdown();
+    }
+
+    private static void runLog() throws Exception {
+        Path dir = Files.createTempDirectory("chat-log-bench");
+        int segmentBytes = 16 * 1024 * 1024;
+        MessageLog log = MessageLog.open(dir, segmentBytes);
+
+        long start = System.nanoTime();
+        Thread[] writers = new Thread[LOG_WRITERS];
+        for (int w = 0; w < LOG_WRITERS; w++) {
+            String sender = "user" + w;
+            writers[w] = new Thread(() -> {
+                for (int i = 0; i < LOG_MESSAGES / LOG_WRITERS; i++) {
+                    log.append(sender, i + 1, sender, null, "benchmark message number " + i);
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        double appendSeconds = (System.nanoTime() - start) / 1e9;
+        log.close();
+        double durableSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        MessageLog reopened = MessageLog.open(dir, segmentBytes);
+        double recoveryMillis = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        long replayed = 0;
+        long next = reopened.getStartOffset();
+        List<LogRecord> page;
+        while (!(page = reopened.read(next, 10_000)).isEmpty()) {
+            replayed += page.size();
+            next = page.get(page.size() - 1).getOffset() + 1;
+        }
+        double replaySeconds = (System.nanoTime() - start) / 1e9;
+        reopened.close();
+
+        System.out.printf("appended %d messages: %.0f msgs/s to queue, %.0f msgs/s durable, %.0f msgs per fsync%n",
+                LOG_MESSAGES, LOG_MESSAGES / appendSeconds, LOG_MESSAGES / durableSeconds,
+                (double) LOG_MESSAGES / log.getSyncCount());
+        System.out.printf("reopened in %.1f ms at offset %d, replayed %d at %.0f msgs/s%n",
+                recoveryMillis, reopened.getEndOffset(), replayed, replayed / replaySeconds);
+    }
+
+    private interface Encoder {
+        long encode(ChatMessage message, int recipients) throws IOException;
+    }
+
+    private static void runAlloc() throws Exception {
+        Encoder marshalled = (message, recipients) -> {
+            long bytes = 0;
+            for (int r = 0; r < recipients; r++) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+                    out.writeObject(message.getSender());
+                    out.writeObject(message.getMessage());
+                    out.writeBoolean(message.isPrivate());
+                }
+                bytes += buffer.size();
+            }
+            return bytes;
+        };
+        Encoder perRecipient = (message, recipients) -> {
+            long bytes = 0;
+            for (int r = 0; r < recipients; r++) {
+                bytes += WireProtocol.call(WireProtocol.CALLBACK, 0, "receiveMessage",
+                        new Object[] { message.getSender(), message.getMessage(), message.isPrivate() }).remaining();
+            }
+            return bytes;
+        };
+        Encoder shared = (message, recipients) -> {
+            long bytes = 0;
+            List<ChatMessage> batch = List.of(message);
+            for (int r = 0; r < recipients; r++) {
+                for (ByteBuffer buffer : WireProtocol.messagesCallback(batch)) {
+                    bytes += buffer.remaining();
+                }
+            }
+            return bytes;
+        };
+
+        System.out.printf("%-14s %10s %14s %12s %12s%n", "encoding", "recipients", "alloc KB/bcast", "us/bcast", "wire bytes");
+        for (int recipients : RECIPIENT_COUNTS) {
+            runAlloc("rmi-marshal", marshalled, recipients);
+            runAlloc("per-recipient", perRecipient, recipients);
+            runAlloc("shared", shared, recipients);
+        }
+    }
+
+    private static void runAlloc(String name, Encoder encoder, int recipients) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String text = "The quick brown fox jumps over the lazy dog, message number ";
+        // Warm up so the measurement is not dominated by class loading and compilation
+        for (int i = 0; i < ALLOC_BROADCASTS / 10; i++) {
+            encoder.encode(new ChatMessage(1, 0, "general", "bench", text + i, false), recipients);
+        }
+
+        long wireBytes = 0;
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ALLOC_BROADCASTS; i++) {
+            ChatMessage message = new ChatMessage(i + 1, System.currentTimeMillis(), "general", "bench", text + i, false);
+            wireBytes += encoder.encode(message, recipients);
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / ALLOC_BROADCASTS;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        System.out.printf("%-14s %10d %14.1f %12.1f %12d%n", name, recipients,
+                allocated / 1024.0 / ALLOC_BROADCASTS, micros, wireBytes / ALLOC_BROADCASTS / recipients);
+    }
+
+    private static void runWire() throws Exception {
+        System.out.printf("%-14s %6s %12s %12s%n", "encoding", "batch", "bytes/msg", "ns/msg");
+        for (int batchSize : BATCH_SIZES) {
+            List<ChatMessage> messages = new ArrayList<>(batchSize);
+            List<SerializedMessage> defaults = new ArrayList<>(batchSize);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < batchSize; i++) {
+                // Separate string instances, as they arrive from separate calls
+                String sender = "user" + (i % WIRE_SENDERS);
+                String text = "benchmark message number " + i;
+                messages.add(new ChatMessage(1000 + i, 1000 + i, 500 + i, now + i, "general", sender, null, text, 0));
+                defaults.add(new SerializedMessage(500 + i, now + i, "general", "user" + (i % WIRE_SENDERS), text));
+            }
+            runWire("default", new ArrayList<>(defaults), batchSize);
+            runWire("externalizable", new ArrayList<>(messages), batchSize);
+            runWire("batch", new MessageBatch(messages), batchSize);
+        }
+    }
+
+    private static void runWire(String name, Object batch, int batchSize) throws Exception {
+        byte[] bytes = serialize(batch);
+        for (int i = 0; i < WIRE_ROUNDS / 10; i++) {
+            deserialize(serialize(batch));
+        }
+        int rounds = Math.max(1, WIRE_ROUNDS / batchSize) * 10;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            deserialize(serialize(batch));
+        }
+        double nanosPerMessage = (double) (System.nanoTime() - start) / rounds / batchSize;
+        // Each call has its own stream, so the class descriptors are part of the cost
+        System.out.printf("%-14s %6d %12.1f %12.0f%n", name, batchSize, (double) bytes.length / batchSize, nanosPerMessage);
+    }
+
+    private static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(value);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    /** The message fields with default serialization, as messages were sent before. */
+    private static class SerializedMessage implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long seq;
+        private final long firstSeq;
+        private final long timestamp;
+        private final String room;
+        private final String sender;
+        private final String message;
+        private final boolean isPrivate;
+
+        SerializedMessage(long seq, long timestamp, String room, String sender, String message) {
+            this.seq = seq;
+            this.firstSeq = seq;
+            this.timestamp = timestamp;
+            this.room = room;
+            this.sender = sender;
+            this.message = message;
+            this.isPrivate = false;
+        }
+    }
+
+    private static void runTls() throws Exception {
+        Path dir = Files.createTempDirectory("chat-tls-bench");
+        Path keyStore = dir.resolve("server.p12");
+        Path certificate = dir.resolve("server.pem");
+        Path trustStore = dir.resolve("trust.p12");
+        keytool("-genkeypair", "-alias", "chat", "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+                "-dname", "CN=localhost", "-keystore", keyStore.toString(), "-storetype", "PKCS12",
+                "-storepass", TLS_PASSWORD);
+        keytool("-exportcert", "-rfc", "-alias", "chat", "-file", certificate.toString(),
+                "-keystore", keyStore.toString(), "-storepass", TLS_PASSWORD);
+        keytool("-importcert", "-noprompt", "-alias", "chat", "-file", certificate.toString(),
+                "-keystore", trustStore.toString(), "-storetype", "PKCS12", "-storepass", TLS_PASSWORD);
+        // Read when the default context is first created, so before any connection
+        System.setProperty("javax.net.ssl.trustStore", trustStore.toString());
+        System.setProperty("javax.net.ssl.trustStorePassword", TLS_PASSWORD);
+
+        TlsSocketFactory server = TlsSocketFactory.forServer(keyStore, TLS_PASSWORD.toCharArray(), 1000, 3600);
+        ServerSocket listener = server.createServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while (!listener.isClosed()) {
+                try (Socket socket = listener.accept()) {
+                    socket.getOutputStream().write(socket.getInputStream().read());
+                } catch (IOException e) {
+                    // Closed listener, or a client that went away; either way move on
+                }
+            }
+        }, "tls-bench-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        int port = listener.getLocalPort();
+        // Warm up class loading and the JIT, which otherwise dominate the first connections
+        runTls("warmup", () -> new TlsSocketFactory(null, null), port, TLS_CONNECTIONS / 4, false);
+        System.out.printf("%-10s %12s %16s %12s%n", "client", "connections", "full handshakes", "connect ms");
+        runTls("resumed", () -> new TlsSocketFactory(null, null), port, TLS_CONNECTIONS, true);
+        runTls("full", () -> {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            return new TlsSocketFactory(null, context);
+        }, port, TLS_CONNECTIONS, true);
+        listener.close();
+    }
+
+    private interface TlsClient {
+        TlsSocketFactory create() throws Exception;
+    }
+
+    private static void runTls(String name, TlsClient client, int port, int connections, boolean report)
+            throws Exception {
+        long fullBefore = TlsSocketFactory.getFullHandshakes();
+        long nanosBefore = TlsSocketFactory.getClientHandshakeNanos();
+        for (int i = 0; i < connections; i++) {
+            try (Socket socket = client.create().createSocket("localhost", port)) {
+                // A round trip of data, which is also when TLS 1.3 hands over the resumption ticket
+                socket.getOutputStream().write(1);
+                socket.getInputStream().read();
+            }
+        }
+        if (report) {
+            long full = TlsSocketFactory.getFullHandshakes() - fullBefore;
+            double millis = (TlsSocketFactory.getClientHandshakeNanos() - nanosBefore) / 1e6 / connections;
+            System.out.printf("%-10s %12d %16d %12.2f%n", name, connections, full, millis);
+        }
+    }
+
+    private static void runTranscript() {
+        List<ChatMessage> messages = new ArrayList<>(TRANSCRIPT_MESSAGES);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < TRANSCRIPT_MESSAGES; i++) {
+            String text = i % 10 == 0 ? "first line " + i + "\nsecond line\nthird line"
+                    : "message " + i + " about something" + " and more".repeat(i % 25);
+            messages.add(new ChatMessage(i + 1, i + 1, i + 1, now + i, "general", "user" + (i % 50), null, text, 0));
+        }
+        Font font = new Font(Font.SANS_SERIF, Font.PLAIN, 14);
+        Map<TextAttribute, Object> senderStyle = Map.of(TextAttribute.FONT, font.deriveFont(Font.BOLD));
+        Map<TextAttribute, Object> textStyle = Map.of(TextAttribute.FONT, font);
+        System.out.printf("%-11s %9s %10s %9s %14s %13s%n", "view", "messages", "build ms", "heap MB",
+                "frame ms mean", "frame ms max");
+
+        long heapBefore = settledHeap();
+        long start = System.nanoTime();
+        DefaultStyledDocument document = new DefaultStyledDocument();
+        SimpleAttributeSet senderAttributes = new SimpleAttributeSet();
+        StyleConstants.setBold(senderAttributes, true);
+        try {
+            for (ChatMessage message : messages) {
+                document.insertString(document.getLength(), message.getSender() + ": ", senderAttributes);
+                document.insertString(document.getLength(), message.getMessage() + "\n", null);
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        JTextPane pane = new JTextPane(document);
+        pane.setFont(font);
+        runTranscript("text pane", pane, start, heapBefore);
+        pane = null;
+        document = null;
+
+        heapBefore = settledHeap();
+        start = System.nanoTime();
+        Transcript transcript = new Transcript();
+        for (ChatMessage message : messages) {
+            transcript.add(message);
+        }
+        TranscriptView view = new TranscriptView(message -> {
+            AttributedString row = new AttributedString(message.getSender() + ": " + message.getMessage(), textStyle);
+            row.addAttributes(senderStyle, 0, message.getSender().length() + 2);
+            return row;
+        });
+        view.setFont(font);
+        view.setTranscript(transcript);
+        runTranscript("transcript", view, start, heapBefore);
+    }
+
+    private static void runTranscript(String name, JComponent view, long start, long heapBefore) {
+        JViewport viewport = new JViewport();
+        viewport.setView(view);
+        viewport.setSize(800, 600);
+        viewport.doLayout();
+        double buildMillis = (System.nanoTime() - start) / 1e6;
+        // The messages themselves are held by the list in both cases, so this is what the view adds
+        long heap = settledHeap() - heapBefore;
+
+        BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(42);
+        long total = 0;
+        long max = 0;
+        for (int frame = 0; frame < TRANSCRIPT_FRAMES; frame++) {
+            // Mostly small scrolls, as a wheel makes, with the odd jump
+            int height = view.getHeight() - 600;
+            Point position = viewport.getViewPosition();
+            int y = frame % 50 == 0 ? random.nextInt(height) : Math.max(0, Math.min(height, position.y + 60));
+            long frameStart = System.nanoTime();
+            viewport.setViewPosition(new Point(0, y));
+            // No window to revalidate for us
+            viewport.doLayout();
+            Graphics2D g = image.createGraphics();
+            g.setClip(0, 0, 800, 600);
+            g.translate(0, -viewport.getViewPosition().y);
+            view.paint(g);
+            g.dispose();
+            long nanos = System.nanoTime() - frameStart;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+        System.out.printf("%-11s %9d %10.0f %9.1f %14.2f %13.2f%n", name, TRANSCRIPT_MESSAGES, buildMillis,
+                heap / 1024.0 / 1024.0, total / 1e6 / TRANSCRIPT_FRAMES, max / 1e6);
+    }
+
+    private static long settledHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return usedHeap();
+    }
+
+    private static void keytool(String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "keytool").toString());
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + output);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** A client whose every callback costs one simulated network round trip. */
+    private static class SimulatedClient implements ClientCallback {
+        private final AtomicLong delivered;
+        private final AtomicLong calls;
+
+        SimulatedClient(AtomicLong delivered, AtomicLong calls) {
+            this.delivered = delivered;
+            this.calls = calls;
+        }
+
+        private void roundTrip() {
+            calls.incrementAndGet();
+            try {
+                TimeUnit.MILLISECONDS.sleep(ROUND_TRIP_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void receiveMessage(String sender, String message, boolean isPrivate) {
+            roundTrip();
+            delivered.incrementAndGet();
+        }
+
+        @Override
+        public void receiveMessages(List<ChatMessage> messages) {
+            roundTrip();
+            delivered.addAndGet(messages.size());
+        }
+
+        @Override
+        public void updateClientList(List<String> clients) {
+            roundTrip();
+        }
+
+        @Override
+        public void updatePresence(PresenceUpdate update) {
+            roundTrip();
+        }
+
+        @Override
+        public void messagesDelivered(List<Long> ids) {
+            roundTrip();
+        }
+    }
+}
@@ -1,35 +1,53 @@
-import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.Scanner;
 
 public class ChatClient {
+    private static final long DEFAULT_LEASE_MILLIS = 30_000;
+
     private String name;
     private ChatService service;
+    private final MessageSender messageSender = new MessageSender(() -> service);
     private ClientCallback callback;
+    private final Set<String> activeUsers = new LinkedHashSet<>();
+    private long presenceVersion;
+    private final Set<String> rooms = new CopyOnWriteArraySet<>();
+    private volatile String currentRoom = ChatService.DEFAULT_ROOM;
+    private final Map<String, Long> lastSeqs = new HashMap<>(); // last shown sequence per room
+    private ScheduledExecutorService leaseRenewer;
     
     public ChatClient(String name, String serverIP) {
+        this(name, serverIP, ChatTransport.RMI);
+    }
+    
+    public ChatClient(String name, String serverIP, ChatTransport transport) {
         this.name = name;
         try {
             // Set the security policy but don't set security manager (for newer Java versions)
             System.setProperty("java.security.policy", "./policy/client.policy");
             
-            // Get the registry
-            Registry registry = LocateRegistry.getRegistry(serverIP, 1099);
-            
             // Look up the service
-            service = (ChatService) registry.lookup("ChatService");
+            service = transport.connect(serverIP);
             
             // Create callback
             callback = new ClientCallbackImpl(this);
+            transport.exportCallback(callback);
             
             // Register with the service
             service.registerClient(name, callback);
+            rooms.add(ChatService.DEFAULT_ROOM);
+            startLeaseRenewal();
             
             System.out.println("Connected to chat server as " + name);
-        } catch (RemoteException | NotBoundException e) {
+        } catch (RemoteException e) {
             System.err.println("Client exception: " + e.toString());
             e.printStackTrace();
         }
@@ -37,13 +55,117 @@ public class ChatClient {
     
     public void sendMessage(String message) {
         try {
-            service.broadcastMessage(name, message);
+            messageSender.send(ChatMessage.toRoom(currentRoom, name, message));
         } catch (RemoteException e) {
             System.err.println("Error sending message: " + e.toString());
         }
     }
     
+    // Handles /join, /create, /leave, /room and /rooms; returns false for ordinary text
+    public boolean handleCommand(String line) {
+        String[] parts = line.trim().split("\\s+", 2);
+        String room = parts.length > 1 ? parts[1] : null;
+        try {
+            switch (parts[0]) {
+                case "/rooms":
+                    System.out.println("Rooms: " + String.join(", ", service.listRooms()));
+                    return true;
+                case "/create":
+                case "/join":
+                    if (room == null) {
+                        System.out.println("Usage: " + parts[0] + " <room>");
+                    } else {
+                        if (parts[0].equals("/create")) {
+                            service.createRoom(name, room);
+                        } else {
+                            service.joinRoom(name, room);
+                        }
+                        rooms.add(room);
+                        currentRoom = room;
+                        System.out.println("Now talking in #" + room);
+                    }
+                    return true;
+                case "/leave":
+                    room = room != null ? room : currentRoom;
+                    service.leaveRoom(name, room);
+                    rooms.remove(room);
+                    if (room.equals(currentRoom)) {
+                        currentRoom = ChatService.DEFAULT_ROOM;
+                        System.out.println("Now talking in #" + currentRoom);
+                    }
+                    return true;
+                case "/room":
+                    if (room == null || !rooms.contains(room)) {
+                        System.out.println("Your rooms: " + String.join(", ", rooms) + " (talking in #" + currentRoom + ")");
+                    } else {
+                        currentRoom = room;
+                        System.out.println("Now talking in #" + room);
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (RemoteException e) {
+            System.err.println("Error: " + e.getMessage());
+            return true;
+        }
+    }
+    
+    private void startLeaseRenewal() {
+        leaseRenewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-renewer");
+            t.setDaemon(true);
+            return t;
+        });
+        leaseRenewer.schedule(this::renewLease, DEFAULT_LEASE_MILLIS / 3, TimeUnit.MILLISECONDS);
+    }
+    
+    private void renewLease() {
+        long leaseMillis = DEFAULT_LEASE_MILLIS;
+        try {
+            leaseMillis = service.renewLease(name);
+            if (leaseMillis == 0) {
+                // The server dropped our session; take our name back
+                service.registerClient(name, callback);
+                leaseMillis = DEFAULT_LEASE_MILLIS;
+                System.out.println("Reconnected to chat server as " + name);
+                rejoinRooms();
+                catchUp();
+            }
+        } catch (RemoteException e) {
+            System.err.println("Error renewing lease: " + e.toString());
+        }
+        if (!leaseRenewer.isShutdown()) {
+            leaseRenewer.schedule(this::renewLease, leaseMillis / 3, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void rejoinRooms() {
+        for (String room : List.copyOf(rooms)) {
+            if (room.equals(ChatService.DEFAULT_ROOM)) {
+                continue;
+            }
+            try {
+                // The room disappears once its last member is gone
+                if (service.listRooms().contains(room)) {
+                    service.joinRoom(name, room);
+                } else {
+                    service.createRoom(name, room);
+                }
+            } catch (RemoteException e) {
+                System.err.println("Could not rejoin #" + room + ": " + e.getMessage());
+                rooms.remove(room);
+                if (room.equals(currentRoom)) {
+                    currentRoom = ChatService.DEFAULT_ROOM;
+                }
+            }
+        }
+    }
+    
     public void disconnect() {
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdownNow();
+        }
         try {
             service.unregisterClient(name);
             System.out.println("Disconnected from chat server");
@@ -56,24 +178,114 @@ public class ChatClient {
         System.out.println(sender + ": " + message);
     }
     
+    public synchronized void displayMessages(List<ChatMessage> messages) {
+        StringBuilder sb = new StringBuilder();
+        for (ChatMessage message : messages) {
+            if (message.getRoom() != null && message.getSeq() > 0) {
+                Long last = lastSeqs.get(message.getRoom());
+                if (last != null && message.getSeq() <= last) {
+                    continue;
+                }
+                if (last != null && message.getFirstSeq() > last + 1) {
+                    // Missed something; print it before this message
+                    for (ChatMessage missed : fetchSince(message.getRoom(), last)) {
+                        if (missed.getSeq() < message.getFirstSeq()) {
+                            append(sb, missed);
+                        }
+                    }
+                }
+                lastSeqs.put(message.getRoom(), message.getSeq());
+            }
+            append(sb, message);
+        }
+        System.out.print(sb);
+    }
+    
+    private void append(StringBuilder sb, ChatMessage message) {
+        if (message.getRoom() != null && !message.getRoom().equals(ChatService.DEFAULT_ROOM)) {
+            sb.append("[#").append(message.getRoom()).append("] ");
+        }
+        if (message.getRecipient() != null) {
+            sb.append("[Private] ").append(message.getSender()).append(": ");
+            if (message.getSender().equals(name)) {
+                sb.append("To ").append(message.getRecipient()).append(": ");
+            }
+        } else {
+            sb.append(message.getSender()).append(": ");
+        }
+        sb.append(message.getMessage()).append(System.lineSeparator());
+    }
+    
+    private List<ChatMessage> fetchSince(String room, long afterSeq) {
+        try {
+            return service.fetchSince(room, afterSeq);
+        } catch (RemoteException e) {
+            System.err.println("Could not fetch missed messages of #" + room + ": " + e.getMessage());
+            return List.of();
+        }
+    }
+    
+    // After a reconnect, one call per room brings it up to date
+    private synchronized void catchUp() {
+        for (Map.Entry<String, Long> entry : Map.copyOf(lastSeqs).entrySet()) {
+            List<ChatMessage> missed = fetchSince(entry.getKey(), entry.getValue());
+            if (!missed.isEmpty()) {
+                displayMessages(missed);
+            }
+        }
+    }
+    
+    public void messagesDelivered(List<Long> ids) {
+        System.out.println("(" + ids.size() + " private message" + (ids.size() == 1 ? "" : "s") + " delivered)");
+    }
+    
     public void updateClientList(List<String> clients) {
         System.out.println("\nActive users: " + String.join(", ", clients));
     }
     
+    public synchronized void applyPresence(PresenceUpdate update) {
+        if (!update.isSnapshot() && update.getVersion() <= presenceVersion) {
+            return;
+        }
+        if (!update.isSnapshot() && update.getBaseVersion() != presenceVersion) {
+            // Missed an update; ask for whatever brings us up to date
+            try {
+                update = service.getPresenceSince(presenceVersion);
+            } catch (RemoteException e) {
+                System.err.println("Error refreshing user list: " + e.toString());
+                return;
+            }
+        }
+
+        if (update.isSnapshot()) {
+            activeUsers.clear();
+        }
+        activeUsers.removeAll(update.getLeft());
+        for (Map.Entry<String, String> rename : update.getRenamed().entrySet()) {
+            activeUsers.remove(rename.getKey());
+            activeUsers.add(rename.getValue());
+        }
+        activeUsers.addAll(update.getJoined());
+        presenceVersion = update.getVersion();
+
+        updateClientList(List.copyOf(activeUsers));
+    }
+    
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: java ChatClient <username> <server-ip>");
+            System.out.println("Usage: java ChatClient <username> <server-ip> [rmi|nio]");
             System.exit(1);
         }
         
         String name = args[0];
         String serverIP = args[1];
+        ChatTransport transport = args.length > 2 ? ChatTransport.fromString(args[2]) : ChatTransport.RMI;
         
-        ChatClient client = new ChatClient(name, serverIP);
+        ChatClient client = new ChatClient(name, serverIP, transport);
         
         Scanner scanner = new Scanner(System.in);
         
-        System.out.println("Type 'exit' to leave the chat");
+        System.out.println("Type 'exit' to leave the chat, /rooms, /create, /join, /leave or /room to manage rooms");
         
         while (true) {
             String message = scanner.nextLine();
@@ -81,7 +293,9 @@ public class ChatClient {
                 client.disconnect();
                 break;
             }
-            client.sendMessage(message);
+            if (!client.handleCommand(message)) {
+                client.sendMessage(message);
+            }
         }
         
         scanner.close();
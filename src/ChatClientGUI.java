@@ -1,38 +1,54 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.datatransfer.StringSelection;
 import java.awt.event.*;
+import java.awt.font.TextAttribute;
 import java.awt.image.BufferedImage;
-import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.text.AttributedString;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.border.*;
 import javax.swing.plaf.basic.BasicTextFieldUI;
 import javax.swing.text.*;
+import java.time.Instant;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import javax.imageio.ImageIO;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.File;
 import java.net.URL;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import java.net.URI;
 
 public class ChatClientGUI extends JFrame {
     // Performance tuning fields
     private boolean needsFullUIUpdate = false;
     private static final boolean DEBUG_MODE = false;
+    private static final long DEFAULT_LEASE_MILLIS = 30_000;
+    private static final int HISTORY_PAGE = 50;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+    private static final int EMOJI_ICON_SIZE = 16;
     // UI Components
     private String name;
     private ChatService service;
+    private final MessageSender messageSender = new MessageSender(() -> service);
     private ClientCallbackImpl callback;
-    private JTextPane chatArea;
+    private TranscriptView chatArea;
+    private JScrollPane chatScrollPane;
     private JTextField messageField;
     private JButton sendButton;
     private JButton emojiButton;
@@ -50,6 +66,33 @@ public class ChatClientGUI extends JFrame {
     private boolean emojiPanelVisible = false;
     private boolean notificationsEnabled = true;
     private String currentRecipient = null;
+    private long presenceVersion = 0;
+    private ScheduledExecutorService leaseRenewer;
+
+    // One transcript per room; all share the same styles. Only touched on the EDT.
+    private Map<TextAttribute, Object> timeStyle;
+    private Map<TextAttribute, Object> serverStyle;
+    private Map<TextAttribute, Object> userStyle;
+    private Map<TextAttribute, Object> privateUserStyle;
+    private Map<TextAttribute, Object> messageStyle;
+    private Map<TextAttribute, Object> emojiFallbackStyle;
+    private final Map<String, RoomView> roomViews = new HashMap<>();
+    private final Set<String> joinedRooms = new CopyOnWriteArraySet<>();
+    private volatile String currentRoom = ChatService.DEFAULT_ROOM;
+    private DefaultComboBoxModel<String> roomModel;
+    // Recipients of our recent private messages by log id, until their receipts arrive. EDT only.
+    private final Map<Long, String> awaitingReceipt = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > 100;
+        }
+    };
+    private JComboBox<String> roomSelector;
+    // Messages from callback threads, shown by the EDT at most once per frame
+    private final Queue<ChatMessage> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean renderScheduled = new AtomicBoolean();
+    private Timer renderTimer;
+    private long lastRenderNanos;
 
     // Modern theme settings with vibrant colors and gradients
     private Color THEME_COLOR = new Color(100, 149, 237);
@@ -62,23 +105,18 @@ public class ChatClientGUI extends JFrame {
     // Twemoji settings
     private static final String TWEMOJI_CDN = "https://twemoji.maxcdn.com/v/latest/72x72/";
     private static final String TWEMOJI_EXT = ".png";
-    private static final Map<String, ImageIcon> emojiCache = new HashMap<>();
-    // Update the EMOJI_PATTERN to handle all modern emoji types
-    private static final Pattern EMOJI_PATTERN = Pattern.compile(
-        "(?:[\uD83C-\uDBFF\uDC00-\uDFFF]+|" +  // Standard emojis
-        "[\u20E3\uFE0F]|" +                   // Variation selectors
-        "(?:[\uD83D\uD83E][\uDC00-\uDFFF]|" + // Surrogate pairs
-        "[\uD83C][\uDFFB-\uDFFF]|" +          // Skin tone modifiers
-        "[\uD83C][\uDDE6-\uDDFF][\uD83C][\uDDE6-\uDDFF])" + // Flags
-        ")+"                                   // Match one or more consecutive emojis
-    );
+    private static EmojiCache emojiCache;
 
     public ChatClientGUI(String name, String serverIP) {
+        this(name, serverIP, ChatTransport.RMI);
+    }
+
+    public ChatClientGUI(String name, String serverIP, ChatTransport transport) {
         this.name = name;
         applyTheme("Ocean Wave");
         initializeUI();
         setAppIcon();
-        connectToServer(serverIP);
+        connectToServer(serverIP, transport);
         NotificationUtil.initTrayIcon(this);
         setupUserListContextMenu();
     }
@@ -181,6 +219,7 @@ public class ChatClientGUI extends JFrame {
         statusLabel.setForeground(Color.WHITE);
         statusLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
         statusPanel.add(statusLabel, BorderLayout.WEST);
+        statusPanel.add(createRoomSwitcher(), BorderLayout.CENTER);
 
         settingsButton = createIconButton("/assets/settings-icon.png", "Settings", 24);
         settingsButton.setContentAreaFilled(false);
@@ -198,6 +237,96 @@ public class ChatClientGUI extends JFrame {
         return statusPanel;
     }
 
+    private JPanel createRoomSwitcher() {
+        roomModel = new DefaultComboBoxModel<>();
+        roomModel.addElement(ChatService.DEFAULT_ROOM);
+        roomSelector = new JComboBox<>(roomModel);
+        roomSelector.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        roomSelector.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                return super.getListCellRendererComponent(list, "#" + value, index, isSelected, cellHasFocus);
+            }
+        });
+        roomSelector.addActionListener(e -> {
+            String room = (String) roomSelector.getSelectedItem();
+            if (room != null && !room.equals(currentRoom)) {
+                showRoom(room);
+            }
+        });
+
+        JButton joinButton = createStyledButton("Join", "Join or create a room");
+        joinButton.addActionListener(e -> promptJoinRoom());
+        JButton leaveButton = createStyledButton("Leave", "Leave the current room");
+        leaveButton.addActionListener(e -> leaveCurrentRoom());
+
+        JPanel switcher = new JPanel(new FlowLayout(FlowLayout.CENTER, 8, 0));
+        switcher.setOpaque(false);
+        switcher.add(roomSelector);
+        switcher.add(joinButton);
+        switcher.add(leaveButton);
+        return switcher;
+    }
+
+    private RoomView roomView(String room) {
+        return roomViews.computeIfAbsent(room, r -> new RoomView(new Transcript()));
+    }
+
+    // Swaps the transcript in place; the other rooms keep receiving in the background
+    private void showRoom(String room) {
+        currentRoom = room;
+        chatArea.setTranscript(roomView(room).transcript);
+        chatArea.scrollToEnd();
+        if (roomSelector.getSelectedItem() == null || !roomSelector.getSelectedItem().equals(room)) {
+            roomSelector.setSelectedItem(room);
+        }
+    }
+
+    private void promptJoinRoom() {
+        String room = JOptionPane.showInputDialog(this, "Room to join (it is created if it does not exist):",
+                "Join Room", JOptionPane.PLAIN_MESSAGE);
+        if (room == null || room.trim().isEmpty()) {
+            return;
+        }
+        room = room.trim().replaceFirst("^#", "");
+        try {
+            if (joinedRooms.contains(room)) {
+                showRoom(room);
+                return;
+            }
+            if (service.listRooms().contains(room)) {
+                service.joinRoom(name, room);
+            } else {
+                service.createRoom(name, room);
+            }
+            joinedRooms.add(room);
+            roomModel.addElement(room);
+            showRoom(room);
+            loadHistory(room);
+        } catch (RemoteException e) {
+            displayMessage("ERROR", "Could not join #" + room + ": " + e.getMessage(), false);
+        }
+    }
+
+    private void leaveCurrentRoom() {
+        String room = currentRoom;
+        if (room.equals(ChatService.DEFAULT_ROOM)) {
+            displayMessage("SERVER", "You cannot leave #" + room + ".", false);
+            return;
+        }
+        try {
+            service.leaveRoom(name, room);
+        } catch (RemoteException e) {
+            displayMessage("ERROR", "Could not leave #" + room + ": " + e.getMessage(), false);
+            return;
+        }
+        joinedRooms.remove(room);
+        showRoom(ChatService.DEFAULT_ROOM);
+        roomModel.removeElement(room);
+        roomViews.remove(room);
+    }
+
     private ImageIcon loadIcon(String filename, int size) {
         try {
             Image image = ImageIO.read(getClass().getResource(filename));
@@ -241,7 +370,8 @@ public class ChatClientGUI extends JFrame {
     }
 
     private JPanel createChatPanel() {
-        chatArea = new JTextPane() {
+        setupMessageStyles();
+        chatArea = new TranscriptView(this::formatRow) {
             @Override
             protected void paintComponent(Graphics g) {
                 Graphics2D g2d = (Graphics2D) g;
@@ -251,12 +381,14 @@ public class ChatClientGUI extends JFrame {
                 super.paintComponent(g);
             }
         };
-        chatArea.setEditable(false);
         chatArea.setOpaque(false);
         chatArea.setFont(DEFAULT_FONT);
-        setupMessageStyles();
+        chatArea.setTranscript(roomView(ChatService.DEFAULT_ROOM).transcript);
+        setupTranscriptContextMenu();
+        renderTimer = new Timer(0, e -> renderIncoming());
+        renderTimer.setRepeats(false);
 
-        JScrollPane chatScrollPane = new JScrollPane(chatArea) {
+        chatScrollPane = new JScrollPane(chatArea) {
             @Override
             protected void paintComponent(Graphics g) {
                 Graphics2D g2d = (Graphics2D) g;
@@ -270,6 +402,14 @@ public class ChatClientGUI extends JFrame {
         chatScrollPane.getViewport().setOpaque(false);
         chatScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         chatScrollPane.setBorder(BorderFactory.createEmptyBorder());
+        chatScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            // Reaching the top pulls in the page before the oldest message shown
+            JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+            if (!e.getValueIsAdjusting() && e.getValue() == bar.getMinimum()
+                    && bar.getVisibleAmount() < bar.getMaximum() - bar.getMinimum()) {
+                loadHistory(currentRoom);
+            }
+        });
 
         JPanel chatPanel = new JPanel(new BorderLayout());
         chatPanel.setOpaque(false);
@@ -279,31 +419,38 @@ public class ChatClientGUI extends JFrame {
         return chatPanel;
     }
 
+    // Rebuilt when the font size changes; rows already laid out keep the old styles until relaid
     private void setupMessageStyles() {
-        StyledDocument doc = chatArea.getStyledDocument();
-        Style defaultStyle = chatArea.getStyle(StyleContext.DEFAULT_STYLE);
-        StyleConstants.setFontFamily(defaultStyle, "Segoe UI");
-        StyleConstants.setFontSize(defaultStyle, 14);
-
-        Style serverStyle = doc.addStyle("Server", defaultStyle);
-        StyleConstants.setForeground(serverStyle, new Color(120, 120, 120));
-        StyleConstants.setItalic(serverStyle, true);
-
-        Style userStyle = doc.addStyle("User", defaultStyle);
-        StyleConstants.setForeground(userStyle, THEME_COLOR.darker());
-        StyleConstants.setBold(userStyle, true);
-
-        Style privateUserStyle = doc.addStyle("PrivateUser", defaultStyle);
-        StyleConstants.setForeground(privateUserStyle, new Color(160, 0, 200));
-        StyleConstants.setBold(privateUserStyle, true);
-
-        Style messageStyle = doc.addStyle("Message", defaultStyle);
-        StyleConstants.setForeground(messageStyle, new Color(60, 60, 60));
+        int size = DEFAULT_FONT.getSize();
+        timeStyle = Map.of(TextAttribute.FONT, DEFAULT_FONT.deriveFont(Font.ITALIC, size - 2),
+                TextAttribute.FOREGROUND, new Color(150, 150, 150));
+        serverStyle = Map.of(TextAttribute.FONT, DEFAULT_FONT.deriveFont(Font.ITALIC),
+                TextAttribute.FOREGROUND, new Color(120, 120, 120));
+        userStyle = Map.of(TextAttribute.FONT, DEFAULT_FONT.deriveFont(Font.BOLD),
+                TextAttribute.FOREGROUND, THEME_COLOR.darker());
+        privateUserStyle = Map.of(TextAttribute.FONT, DEFAULT_FONT.deriveFont(Font.BOLD),
+                TextAttribute.FOREGROUND, new Color(160, 0, 200));
+        messageStyle = Map.of(TextAttribute.FONT, DEFAULT_FONT,
+                TextAttribute.FOREGROUND, new Color(60, 60, 60));
+        emojiFallbackStyle = Map.of(TextAttribute.FONT, getEmojiFont(size),
+                TextAttribute.FOREGROUND, new Color(60, 60, 60));
+    }
 
-        Style timeStyle = doc.addStyle("Time", defaultStyle);
-        StyleConstants.setForeground(timeStyle, new Color(150, 150, 150));
-        StyleConstants.setFontSize(timeStyle, 12);
-        StyleConstants.setItalic(timeStyle, true);
+    // Rows are painted rather than editable text, so copying goes through a menu
+    private void setupTranscriptContextMenu() {
+        chatArea.addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                ChatMessage chatMessage = chatArea.messageAt(e.getPoint());
+                if (SwingUtilities.isRightMouseButton(e) && chatMessage != null) {
+                    JPopupMenu contextMenu = new JPopupMenu();
+                    JMenuItem copyItem = new JMenuItem("Copy Message");
+                    copyItem.addActionListener(a -> Toolkit.getDefaultToolkit().getSystemClipboard().setContents(
+                            new StringSelection(chatMessage.getSender() + ": " + chatMessage.getMessage()), null));
+                    contextMenu.add(copyItem);
+                    contextMenu.show(chatArea, e.getX(), e.getY());
+                }
+            }
+        });
     }
 
     private JPanel createEmojiPanel() {
@@ -357,45 +504,27 @@ public class ChatClientGUI extends JFrame {
         return emojiPanel;
     }
     private ImageIcon getTwemojiImage(String emoji) {
-        return emojiCache.computeIfAbsent(emoji, e -> {
+        int sprite = getEmojiCache().getTokenizer().spriteOf(emoji);
+        Image image = sprite >= 0 ? getEmojiCache().getImage(sprite, EMOJI_ICON_SIZE) : null;
+        // Fallback to system emoji font if image not available
+        return image != null ? new ImageIcon(image) : null;
+    }
+
+    // Made on first use; without an atlas every emoji is drawn with the emoji font
+    private static EmojiCache getEmojiCache() {
+        if (emojiCache == null) {
+            EmojiAtlas atlas;
             try {
-                String codePoint = toCodePoint(emoji);
-                
-                // Try loading from resources first
-                InputStream is = getClass().getResourceAsStream(
-                    "/assets/twemoji/72x72/" + codePoint + ".png");
-                if (is == null) {
-                    is = getClass().getResourceAsStream(
-                        "/twemoji/" + codePoint + ".png");
-                }
-                
-                if (is != null) {
-                    try {
-                        BufferedImage image = ImageIO.read(is);
-                        // Scale down to 16x16 (or adjust as needed)
-                        return new ImageIcon(image.getScaledInstance(16, 16, Image.SCALE_SMOOTH));
-                    } finally {
-                        is.close();
-                    }
-                }
-                
-                // Fallback to system emoji font if image not available
-                return null;
-            } catch (IOException ex) {
-                if (DEBUG_MODE) {
-                    System.err.println("Error loading emoji: " + ex.getMessage());
-                }
-                return null;
+                atlas = EmojiAtlas.load();
+            } catch (IOException e) {
+                System.err.println("Emoji images unavailable: " + e.getMessage());
+                atlas = EmojiAtlas.empty();
             }
-        });
+            emojiCache = new EmojiCache(atlas, EmojiCache.DEFAULT_MAX_BYTES, EmojiCache.screenScale());
+        }
+        return emojiCache;
     }
-private String toCodePoint(String emoji) {
-    StringBuilder sb = new StringBuilder();
-    emoji.codePoints()
-         .mapToObj(cp -> String.format("%x", cp))
-         .forEach(sb::append);
-    return sb.toString();
-}
+
     private Font getEmojiFont(int size) {
         String[] emojiFonts = {
                 "Segoe UI Emoji", "Apple Color Emoji",
@@ -565,11 +694,10 @@ private String toCodePoint(String emoji) {
         });
     }
 
-    private void connectToServer(String serverIP) {
+    private void connectToServer(String serverIP, ChatTransport transport) {
         try {
             System.setProperty("java.security.policy", "client.policy");
-            Registry registry = LocateRegistry.getRegistry(serverIP, 1099);
-            service = (ChatService) registry.lookup("ChatService");
+            service = transport.connect(serverIP);
             
             // Check if username is available first
             if (service.isUsernameTaken(name)) {
@@ -577,9 +705,12 @@ private String toCodePoint(String emoji) {
             }
             
             callback = new ClientCallbackImpl(this);
+            transport.exportCallback(callback);
             service.registerClient(name, callback);
+            startLeaseRenewal();
             displayMessage("SERVER", "Connected to chat server as " + name, false);
-        } catch (RemoteException | NotBoundException e) {
+            SwingUtilities.invokeLater(() -> loadHistory(ChatService.DEFAULT_ROOM));
+        } catch (RemoteException e) {
             // Show error in the login dialog instead of creating a new one
             throw new RuntimeException("Failed to connect: " + e.getMessage(), e);
         }
@@ -676,13 +807,10 @@ private String toCodePoint(String emoji) {
         };
 
         DEFAULT_FONT = new Font("Segoe UI", Font.PLAIN, size);
+        setupMessageStyles();
         chatArea.setFont(DEFAULT_FONT);
         messageField.setFont(DEFAULT_FONT);
         userList.setFont(DEFAULT_FONT);
-
-        StyledDocument doc = chatArea.getStyledDocument();
-        StyleConstants.setFontSize(doc.getStyle(StyleContext.DEFAULT_STYLE), size);
-        StyleConstants.setFontSize(doc.getStyle("Time"), size - 2);
         
         // Reapply the custom UI to preserve emoji rendering
         applyEmojiTextFieldUI(messageField);
@@ -947,72 +1075,56 @@ private String toCodePoint(String emoji) {
                 return x; // Return the starting x-coordinate for the caret
             }
 
-            Matcher matcher = EMOJI_PATTERN.matcher(text);
-            while (matcher.find()) {
+            EmojiTokenizer emoji = getEmojiCache().getTokenizer();
+            char[] chars = text.toCharArray();
+            int baseline = field.getBaseline(field.getWidth(), field.getHeight());
+            int pos = 0;
+            while (pos < chars.length) {
+                long match = emoji.match(text, pos);
+                if (match == EmojiTokenizer.NO_MATCH) {
+                    pos++;
+                    continue;
+                }
+
                 // Draw regular text before emoji
-                if (lastPos < matcher.start()) {
-                    String regularText = text.substring(lastPos, matcher.start());
+                if (lastPos < pos) {
                     g2.setFont(DEFAULT_FONT);
                     g2.setColor(Color.BLACK);
-                    x += drawString(g2, regularText, x, 
-                                    field.getBaseline(field.getWidth(), field.getHeight()));
+                    x += drawChars(g2, chars, lastPos, pos, x, baseline);
                 }
 
                 // Check if the caret is within this segment
-                if (caretPosition >= lastPos && caretPosition < matcher.start()) {
+                if (caretPosition >= lastPos && caretPosition < pos) {
                     return x; // Return the x-coordinate for the caret
                 }
 
-                // Process the emoji sequence
-                String emojiSequence = matcher.group();
-                int sequenceLength = emojiSequence.length();
-                int pos = 0;
-
-                while (pos < sequenceLength) {
-                    int emojiLength = 2; // Default to 2 chars for most emojis
-                    if (pos + 3 < sequenceLength && 
-                        emojiSequence.charAt(pos) == '\uD83C' && 
-                        emojiSequence.charAt(pos + 1) >= '\uDDE6' && 
-                        emojiSequence.charAt(pos + 1) <= '\uDDFF') {
-                        emojiLength = 4;
-                    }
-                    emojiLength = Math.min(emojiLength, sequenceLength - pos);
-                    String currentEmoji = emojiSequence.substring(pos, pos + emojiLength);
-
-                    ImageIcon emojiIcon = getTwemojiImage(currentEmoji);
-                    if (emojiIcon != null) {
-                        int yOffset = (field.getFontMetrics(DEFAULT_FONT).getAscent() - emojiIcon.getIconHeight()) / 2;
-                        g2.drawImage(emojiIcon.getImage(), 
-                                     x, 
-                                     field.getBaseline(field.getWidth(), field.getHeight()) - emojiIcon.getIconHeight() + yOffset, 
-                                     emojiIcon.getIconWidth(), 
-                                     emojiIcon.getIconHeight(), 
-                                     null);
-                        x += emojiIcon.getIconWidth();
-                    } else {
-                        g2.setFont(getEmojiFont(field.getFont().getSize()));
-                        g2.setColor(Color.BLACK);
-                        x += drawString(g2, currentEmoji, x, 
-                                        field.getBaseline(field.getWidth(), field.getHeight()));
-                    }
-                    pos += emojiLength;
+                int end = EmojiTokenizer.end(match);
+                int sprite = EmojiTokenizer.sprite(match);
+                Image emojiImage = sprite >= 0 ? getEmojiCache().getImage(sprite, EMOJI_ICON_SIZE) : null;
+                if (emojiImage != null) {
+                    int yOffset = (field.getFontMetrics(DEFAULT_FONT).getAscent() - EMOJI_ICON_SIZE) / 2;
+                    g2.drawImage(emojiImage, x, baseline - EMOJI_ICON_SIZE + yOffset,
+                            EMOJI_ICON_SIZE, EMOJI_ICON_SIZE, null);
+                    x += EMOJI_ICON_SIZE;
+                } else {
+                    g2.setFont(getEmojiFont(field.getFont().getSize()));
+                    g2.setColor(Color.BLACK);
+                    x += drawChars(g2, chars, pos, end, x, baseline);
                 }
 
-                lastPos = matcher.end();
-
-                // Check if the caret is within this segment
-                if (caretPosition >= matcher.start() && caretPosition < lastPos) {
+                // Check if the caret is within this emoji
+                if (caretPosition >= pos && caretPosition < end) {
                     return x; // Return the x-coordinate for the caret
                 }
+                pos = end;
+                lastPos = end;
             }
 
             // Draw remaining text
-            if (lastPos < text.length()) {
-                String remainingText = text.substring(lastPos);
+            if (lastPos < chars.length) {
                 g2.setFont(DEFAULT_FONT);
                 g2.setColor(Color.BLACK);
-                x += drawString(g2, remainingText, x, 
-                                field.getBaseline(field.getWidth(), field.getHeight()));
+                x += drawChars(g2, chars, lastPos, chars.length, x, baseline);
             }
 
             // Check if the caret is at the end of the text
@@ -1023,10 +1135,10 @@ private String toCodePoint(String emoji) {
             return x; // Default return value
         }
 
-        private int drawString(Graphics2D g2, String text, int x, int y) {
+        private int drawChars(Graphics2D g2, char[] chars, int start, int end, int x, int y) {
             FontMetrics fm = g2.getFontMetrics();
-            g2.drawString(text, x, y);
-            return fm.stringWidth(text);
+            g2.drawChars(chars, start, end - start, x, y);
+            return fm.charsWidth(chars, start, end - start);
         }
 
         private void paintCaret(Graphics2D g2, int caretX) {
@@ -1131,127 +1243,290 @@ private String toCodePoint(String emoji) {
         messageField.requestFocus();
     }
 
+    // Sends off the EDT so retries during a network blip do not freeze the window
     private void sendMessage() {
         String message = messageField.getText().trim();
         if (!message.isEmpty() && !message.equals("Type a message")) {
-            try {
-                if (currentRecipient != null) {
-                    service.sendPrivateMessage(name, currentRecipient, message);
-                } else {
-                    service.broadcastMessage(name, message);
-                }
-                messageField.setText("");
-            } catch (RemoteException e) {
-                displayMessage("ERROR", "Failed to send message: " + e.getMessage(), false);
+            if (currentRecipient != null) {
+                statusLabel.setText("Private chat with: " + currentRecipient);
             }
+            messageSender.sendLater(currentRecipient != null
+                    ? ChatMessage.toRecipient(name, currentRecipient, message)
+                    : ChatMessage.toRoom(currentRoom, name, message),
+                    e -> displayMessage("ERROR", "Failed to send message: " + e.getMessage(), false));
+            messageField.setText("");
         }
     }
 
     public void displayMessage(String sender, String message, boolean isPrivate) {
-        SwingUtilities.invokeLater(() -> {
-            StyledDocument doc = chatArea.getStyledDocument();
-            try {
-                LocalTime now = LocalTime.now();
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm");
-                String time = now.format(formatter);
+        displayMessages(List.of(new ChatMessage(sender, message, isPrivate)));
+    }
 
-                if (doc.getLength() > 0) {
-                    doc.insertString(doc.getLength(), "\n", null);
+    /**
+     * Queues messages for the EDT from any thread. However many arrive, they are added
+     * to the transcripts together once per frame, with one layout and repaint.
+     */
+    public void displayMessages(List<ChatMessage> messages) {
+        incoming.addAll(messages);
+        if (renderScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                long wait = lastRenderNanos + FRAME_NANOS - System.nanoTime();
+                if (wait <= 0) {
+                    renderIncoming();
+                } else {
+                    renderTimer.setInitialDelay((int) TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+                    renderTimer.restart();
                 }
+            });
+        }
+    }
 
-                if (sender.equals("SERVER")) {
-                    doc.insertString(doc.getLength(), "[" + time + "] ", doc.getStyle("Time"));
-                    doc.insertString(doc.getLength(), message, doc.getStyle("Server"));
-                } else {
-                    Style senderStyle = isPrivate ? doc.getStyle("PrivateUser") : doc.getStyle("User");
-                    doc.insertString(doc.getLength(), "[" + time + "] ", doc.getStyle("Time"));
-                    doc.insertString(doc.getLength(), sender + ": ", senderStyle);
-                    insertMessageWithEmojis(doc, message);
+    private void renderIncoming() {
+        lastRenderNanos = System.nanoTime();
+        // Cleared first so anything queued from here on schedules the next frame
+        renderScheduled.set(false);
+        List<ChatMessage> messages = new ArrayList<>();
+        for (ChatMessage message; (message = incoming.poll()) != null; ) {
+            messages.add(message);
+        }
+
+        Transcript current = chatArea.getTranscript();
+        boolean atEnd = chatArea.isAtEnd();
+        boolean currentChanged = false;
+        ChatMessage lastIncoming = null;
+        // Add the whole batch before scrolling once
+        for (ChatMessage message : messages) {
+            // Local notices have no server time, so they keep the time they arrived
+            ChatMessage chatMessage = message.getTimestamp() > 0 ? message
+                    : message.withTimestamp(System.currentTimeMillis());
+            // Private and local notices show wherever the user is looking
+            RoomView view = roomView(currentRoom);
+            if (chatMessage.getRoom() != null) {
+                String room = chatMessage.getRoom();
+                view = roomView(room);
+                if (view.catchingUp || view.isAfterGap(chatMessage)) {
+                    // Hold it back until the missing messages are in
+                    view.pending.add(chatMessage);
+                    catchUp(room, view);
+                    continue;
                 }
+                if (!view.accept(chatMessage)) {
+                    continue; // already shown by a history page
+                }
+            }
+            if (!view.transcript.add(chatMessage)) {
+                view.trimmed();
+            }
+            currentChanged |= view.transcript == current;
+            String sender = chatMessage.getSender();
+            if (chatMessage.getRecipient() != null && sender.equals(name)) {
+                awaitingReceipt.put(chatMessage.getId(), chatMessage.getRecipient());
+            }
+            if (!sender.equals(name) && !sender.equals("SERVER")) {
+                lastIncoming = chatMessage;
+            }
+        }
 
-                chatArea.setCaretPosition(doc.getLength());
+        if (currentChanged) {
+            chatArea.rowsAdded();
+            // Someone reading back up the transcript keeps their place
+            if (atEnd) {
+                chatArea.scrollToEnd();
+            }
+        }
 
-                if (!sender.equals(name) && !sender.equals("SERVER")) {
-                    playMessageSound();
-                    if (notificationsEnabled && (getExtendedState() == ICONIFIED || !isActive())) {
-                        String notificationMsg = isPrivate ? "Private message from " + sender
-                                : "New message from " + sender;
-                        NotificationUtil.showNotification(notificationMsg,
-                                message.length() > 20 ? message.substring(0, 20) + "..." : message);
-                    }
+        if (lastIncoming != null) {
+            String sender = lastIncoming.getSender();
+            String message = lastIncoming.getMessage();
+            playMessageSound();
+            if (notificationsEnabled && (getExtendedState() == ICONIFIED || !isActive())) {
+                String notificationMsg = lastIncoming.isPrivate() ? "Private message from " + sender
+                        : "New message from " + sender;
+                NotificationUtil.showNotification(notificationMsg,
+                        message.length() > 20 ? message.substring(0, 20) + "..." : message);
+            }
+        }
+    }
+
+    // Fetches the page before the oldest message of the room off the EDT, at most one request at a time
+    private void loadHistory(String room) {
+        RoomView view = roomView(room);
+        // A full transcript would only drop the newest rows to make room
+        if (view.loading || view.historyComplete || service == null
+                || view.transcript.size() >= Transcript.MAX_ROWS) {
+            return;
+        }
+        view.loading = true;
+        long before = view.oldestSeq;
+        Thread loader = new Thread(() -> {
+            List<ChatMessage> page;
+            try {
+                page = service.getHistory(room, before, HISTORY_PAGE);
+            } catch (RemoteException e) {
+                if (DEBUG_MODE) {
+                    System.err.println("Could not load history of #" + room + ": " + e.getMessage());
                 }
-            } catch (BadLocationException e) {
-                e.printStackTrace();
+                page = null;
             }
-        });
+            List<ChatMessage> loaded = page;
+            SwingUtilities.invokeLater(() -> {
+                view.loading = false;
+                if (loaded != null) {
+                    view.historyComplete = loaded.size() < HISTORY_PAGE;
+                    prependHistory(view, loaded);
+                }
+            });
+        }, "history-loader");
+        loader.setDaemon(true);
+        loader.start();
     }
 
-    private void insertMessageWithEmojis(StyledDocument doc, String message) throws BadLocationException {
-        Matcher matcher = EMOJI_PATTERN.matcher(message);
-        int lastPos = 0;
+    private void prependHistory(RoomView view, List<ChatMessage> page) {
+        boolean visible = view.transcript == chatArea.getTranscript();
+        JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+        int oldMaximum = bar.getMaximum();
+        int oldValue = bar.getValue();
+        boolean wasEmpty = view.transcript.size() == 0;
+        List<ChatMessage> older = new ArrayList<>(page.size());
+        for (ChatMessage chatMessage : page) {
+            // Live delivery may already have shown the newest ones
+            if (chatMessage.getSeq() < view.oldestSeq) {
+                older.add(chatMessage);
+            }
+        }
+        view.transcript.addFirst(older);
+        if (!page.isEmpty()) {
+            view.oldestSeq = Math.min(view.oldestSeq, page.get(0).getSeq());
+            view.newestSeq = Math.max(view.newestSeq, page.get(page.size() - 1).getSeq());
+        }
 
-        while (matcher.find()) {
-            // Add any non-emoji text before the emoji
-            if (lastPos < matcher.start()) {
-                doc.insertString(doc.getLength(),
-                        message.substring(lastPos, matcher.start()),
-                        doc.getStyle("Message"));
+        if (visible) {
+            chatArea.rowsAdded();
+            // Keep the messages the user was looking at in place
+            SwingUtilities.invokeLater(() -> bar.setValue(wasEmpty ? bar.getMaximum()
+                    : oldValue + bar.getMaximum() - oldMaximum));
+        }
+    }
+
+    // Fetches what the room missed off the EDT, then shows it followed by the held-back messages
+    private void catchUp(String room, RoomView view) {
+        if (view.catchingUp || service == null) {
+            return;
+        }
+        view.catchingUp = true;
+        long after = view.newestSeq;
+        Thread fetcher = new Thread(() -> {
+            List<ChatMessage> missed = List.of();
+            try {
+                missed = service.fetchSince(room, after);
+            } catch (RemoteException e) {
+                // Show what we have; the gap stays
+                if (DEBUG_MODE) {
+                    System.err.println("Could not catch up on #" + room + ": " + e.getMessage());
+                }
             }
-            
-            // Get the entire emoji sequence
-            String emojiSequence = matcher.group();
-            int sequenceLength = emojiSequence.length();
-            int pos = 0;
-            
-            // Process each emoji in the sequence
-            while (pos < sequenceLength) {
-                // Determine the length of the current emoji (most are 2 chars, some are 4)
-                int emojiLength = 2; // default to 2 chars for most emojis
-                
-                // Check for flags or other special emojis that are 4 chars
-                if (pos + 3 < sequenceLength && 
-                    emojiSequence.charAt(pos) == '\uD83C' && 
-                    emojiSequence.charAt(pos + 1) >= '\uDDE6' && 
-                    emojiSequence.charAt(pos + 1) <= '\uDDFF') {
-                    emojiLength = 4;
+            List<ChatMessage> fetched = missed;
+            SwingUtilities.invokeLater(() -> {
+                view.catchingUp = false;
+                List<ChatMessage> ordered = new ArrayList<>(fetched);
+                ordered.addAll(view.pending);
+                view.pending.clear();
+                ordered.sort((a, b) -> Long.compare(a.getSeq(), b.getSeq()));
+                for (ChatMessage chatMessage : ordered) {
+                    if (view.accept(chatMessage) && !view.transcript.add(chatMessage)) {
+                        view.trimmed();
+                    }
                 }
-                
-                // Make sure we don't go past the sequence length
-                emojiLength = Math.min(emojiLength, sequenceLength - pos);
-                String currentEmoji = emojiSequence.substring(pos, pos + emojiLength);
-                
-                // Insert the emoji
-                ImageIcon emojiIcon = getTwemojiImage(currentEmoji);
-                if (emojiIcon != null) {
-                    // Scale the icon to match text size
-                    Image img = emojiIcon.getImage();
-                    int size = DEFAULT_FONT.getSize() + 2; // Slightly larger than text
-                    Image scaledImg = img.getScaledInstance(size, size, Image.SCALE_SMOOTH);
-                    emojiIcon = new ImageIcon(scaledImg);
-                    
-                    Style emojiStyle = doc.addStyle("Twemoji", null);
-                    StyleConstants.setIcon(emojiStyle, emojiIcon);
-                    doc.insertString(doc.getLength(), " ", emojiStyle);
-                } else {
-                    // Fallback to system emoji font
-                    Style fallbackStyle = doc.addStyle("EmojiFallback", doc.getStyle("Message"));
-                    StyleConstants.setFontFamily(fallbackStyle, getEmojiFont(DEFAULT_FONT.getSize()).getFamily());
-                    doc.insertString(doc.getLength(), currentEmoji, fallbackStyle);
+                if (view.transcript == chatArea.getTranscript()) {
+                    boolean atEnd = chatArea.isAtEnd();
+                    chatArea.rowsAdded();
+                    if (atEnd) {
+                        chatArea.scrollToEnd();
+                    }
+                }
+            });
+        }, "catch-up");
+        fetcher.setDaemon(true);
+        fetcher.start();
+    }
+
+    // After a reconnect every room may have missed messages while we were gone
+    private void catchUpAllRooms() {
+        for (Map.Entry<String, RoomView> entry : roomViews.entrySet()) {
+            if (entry.getValue().newestSeq > 0) {
+                catchUp(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // One transcript row: time, sender, then the message with emoji drawn from their images
+    private AttributedString formatRow(ChatMessage chatMessage) {
+        String sender = chatMessage.getSender();
+        String message = chatMessage.getMessage();
+        RowText row = new RowText();
+        row.append("[" + formatTime(chatMessage) + "] ", timeStyle);
+
+        if (sender.equals("SERVER")) {
+            row.append(message, serverStyle);
+        } else {
+            Map<TextAttribute, Object> senderStyle = chatMessage.isPrivate() ? privateUserStyle : userStyle;
+            if (chatMessage.getRecipient() != null) {
+                sender = "[Private] " + sender;
+                if (chatMessage.getSender().equals(name)) {
+                    message = "To " + chatMessage.getRecipient() + ": " + message;
                 }
-                
-                pos += emojiLength;
             }
+            row.append(sender + ": ", senderStyle);
+            appendMessageWithEmojis(row, message);
+        }
+        return row.build();
+    }
 
-            lastPos = matcher.end();
+    // Server time when the message has one, otherwise the time it is shown
+    private static String formatTime(ChatMessage chatMessage) {
+        LocalTime time = chatMessage.getTimestamp() > 0
+                ? LocalTime.ofInstant(Instant.ofEpochMilli(chatMessage.getTimestamp()), ZoneId.systemDefault())
+                : LocalTime.now();
+        return time.format(TIME_FORMAT);
+    }
+
+    private void appendMessageWithEmojis(RowText row, String message) {
+        EmojiTokenizer emoji = getEmojiCache().getTokenizer();
+        int lastPos = 0;
+        int pos = 0;
+        while (pos < message.length()) {
+            long match = emoji.match(message, pos);
+            if (match == EmojiTokenizer.NO_MATCH) {
+                pos++;
+                continue;
+            }
+
+            // Add any non-emoji text before the emoji
+            row.append(message, lastPos, pos, messageStyle);
+
+            // The image stands in for a single object replacement character
+            int end = EmojiTokenizer.end(match);
+            int sprite = EmojiTokenizer.sprite(match);
+            Map<TextAttribute, Object> emojiStyle = sprite >= 0 ? getEmojiStyle(sprite) : null;
+            if (emojiStyle != null) {
+                row.append("\uFFFC", emojiStyle);
+            } else {
+                // Fallback to system emoji font
+                row.append(message, pos, end, emojiFallbackStyle);
+            }
+            pos = end;
+            lastPos = end;
         }
-        
+
         // Add any remaining text after the last emoji
-        if (lastPos < message.length()) {
-            doc.insertString(doc.getLength(),
-                    message.substring(lastPos),
-                    doc.getStyle("Message"));
-        }
+        row.append(message, lastPos, message.length(), messageStyle);
     }
+
+    // The emoji image scaled to match text size, or null to use the emoji font
+    private Map<TextAttribute, Object> getEmojiStyle(int sprite) {
+        return getEmojiCache().getStyle(sprite, DEFAULT_FONT.getSize() + 2); // Slightly larger than text
+    }
+
     public void updateClientList(List<String> clients) {
         SwingUtilities.invokeLater(() -> {
             userListModel.clear();
@@ -1261,7 +1536,145 @@ private String toCodePoint(String emoji) {
         });
     }
 
+    // Shows when the private conversation on screen has reached the other side
+    public void messagesDelivered(List<Long> ids) {
+        SwingUtilities.invokeLater(() -> {
+            // The echo of the message may still be waiting for its frame; show it now so its receipt finds it
+            if (!incoming.isEmpty()) {
+                renderTimer.stop();
+                renderIncoming();
+            }
+            for (Long id : ids) {
+                String recipient = awaitingReceipt.remove(id);
+                if (recipient != null && recipient.equals(currentRecipient)) {
+                    statusLabel.setText("Private chat with: " + currentRecipient + " (delivered)");
+                }
+            }
+        });
+    }
+
+    public void applyPresence(PresenceUpdate update) {
+        SwingUtilities.invokeLater(() -> {
+            if (!update.isSnapshot() && update.getVersion() <= presenceVersion) {
+                return;
+            }
+            if (!update.isSnapshot() && update.getBaseVersion() != presenceVersion) {
+                refreshPresence();
+                return;
+            }
+
+            if (update.isSnapshot()) {
+                List<UserListItem> items = new ArrayList<>();
+                for (String client : update.getJoined()) {
+                    items.add(new UserListItem(client, true));
+                }
+                userListModel.clear();
+                userListModel.addAll(items);
+            } else {
+                for (String client : update.getLeft()) {
+                    int index = indexOfUser(client);
+                    if (index >= 0) {
+                        userListModel.remove(index);
+                    }
+                }
+                for (Map.Entry<String, String> rename : update.getRenamed().entrySet()) {
+                    int index = indexOfUser(rename.getKey());
+                    if (index >= 0) {
+                        userListModel.set(index, new UserListItem(rename.getValue(), true));
+                    }
+                }
+                for (String client : update.getJoined()) {
+                    userListModel.addElement(new UserListItem(client, true));
+                }
+            }
+            presenceVersion = update.getVersion();
+        });
+    }
+
+    // Fetches the changes we missed off the EDT, then applies them as usual
+    private void refreshPresence() {
+        long since = presenceVersion;
+        Thread refresher = new Thread(() -> {
+            try {
+                applyPresence(service.getPresenceSince(since));
+            } catch (RemoteException e) {
+                if (DEBUG_MODE) {
+                    System.err.println("Could not refresh user list: " + e.getMessage());
+                }
+            }
+        }, "presence-refresh");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    private int indexOfUser(String username) {
+        for (int i = 0; i < userListModel.getSize(); i++) {
+            if (userListModel.get(i).getUsername().equals(username)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void startLeaseRenewal() {
+        leaseRenewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-renewer");
+            t.setDaemon(true);
+            return t;
+        });
+        leaseRenewer.schedule(this::renewLease, DEFAULT_LEASE_MILLIS / 3, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the renewer thread, never on the EDT
+    private void renewLease() {
+        long leaseMillis = DEFAULT_LEASE_MILLIS;
+        try {
+            leaseMillis = service.renewLease(name);
+            if (leaseMillis == 0) {
+                // The server dropped our session; take our name back
+                service.registerClient(name, callback);
+                leaseMillis = DEFAULT_LEASE_MILLIS;
+                displayMessage("SERVER", "Reconnected to chat server as " + name, false);
+                rejoinRooms();
+                SwingUtilities.invokeLater(this::catchUpAllRooms);
+            }
+        } catch (RemoteException e) {
+            if (DEBUG_MODE) {
+                System.err.println("Error renewing lease: " + e.getMessage());
+            }
+        }
+        if (!leaseRenewer.isShutdown()) {
+            leaseRenewer.schedule(this::renewLease, leaseMillis / 3, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Runs on the renewer thread after a reconnect; the server only puts us back in the default room
+    private void rejoinRooms() {
+        for (String room : joinedRooms) {
+            try {
+                // The room disappears once its last member is gone
+                if (service.listRooms().contains(room)) {
+                    service.joinRoom(name, room);
+                } else {
+                    service.createRoom(name, room);
+                }
+            } catch (RemoteException e) {
+                joinedRooms.remove(room);
+                SwingUtilities.invokeLater(() -> {
+                    if (room.equals(currentRoom)) {
+                        showRoom(ChatService.DEFAULT_ROOM);
+                    }
+                    roomModel.removeElement(room);
+                });
+                displayMessage("ERROR", "Could not rejoin #" + room + ": " + e.getMessage(), false);
+            }
+        }
+    }
+
     private void disconnect() {
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdownNow();
+        }
         try {
             if (service != null) {
                 service.unregisterClient(name);
@@ -1272,6 +1685,81 @@ private String toCodePoint(String emoji) {
         }
     }
 
+    // A room's transcript, the range of sequence numbers it holds, and messages held back by a gap
+    private static class RoomView {
+        final Transcript transcript;
+        final List<ChatMessage> pending = new ArrayList<>();
+        long oldestSeq = Long.MAX_VALUE;
+        long newestSeq;
+        boolean loading;
+        boolean historyComplete;
+        boolean catchingUp;
+
+        RoomView(Transcript transcript) {
+            this.transcript = transcript;
+        }
+
+        // The oldest rows were dropped, so history is older than what is shown
+        void trimmed() {
+            oldestSeq = Long.MAX_VALUE;
+            for (int i = 0; i < transcript.size() && oldestSeq == Long.MAX_VALUE; i++) {
+                if (transcript.get(i).getSeq() > 0) {
+                    oldestSeq = transcript.get(i).getFirstSeq();
+                }
+            }
+        }
+
+        boolean isAfterGap(ChatMessage message) {
+            return newestSeq > 0 && message.getFirstSeq() > newestSeq + 1;
+        }
+
+        // False for a message that is already shown
+        boolean accept(ChatMessage message) {
+            long seq = message.getSeq();
+            if (seq == 0) {
+                return true;
+            }
+            if (seq <= newestSeq) {
+                return false;
+            }
+            newestSeq = seq;
+            oldestSeq = Math.min(oldestSeq, message.getFirstSeq());
+            return true;
+        }
+    }
+
+    // Styled runs of a transcript row, collected before they become one AttributedString
+    private static class RowText {
+        private final StringBuilder text = new StringBuilder();
+        private final List<Integer> starts = new ArrayList<>();
+        private final List<Map<TextAttribute, Object>> styles = new ArrayList<>();
+
+        void append(String run, Map<TextAttribute, Object> style) {
+            starts.add(text.length());
+            styles.add(style);
+            text.append(run);
+        }
+
+        void append(CharSequence run, int start, int end, Map<TextAttribute, Object> style) {
+            if (start < end) {
+                starts.add(text.length());
+                styles.add(style);
+                text.append(run, start, end);
+            }
+        }
+
+        AttributedString build() {
+            AttributedString row = new AttributedString(text.toString());
+            for (int i = 0; i < starts.size(); i++) {
+                int end = i + 1 < starts.size() ? starts.get(i + 1) : text.length();
+                if (end > starts.get(i)) {
+                    row.addAttributes(styles.get(i), starts.get(i), end);
+                }
+            }
+            return row;
+        }
+    }
+
     private static class UserListItem {
         private final String username;
         private final boolean online;
@@ -1385,6 +1873,21 @@ private String toCodePoint(String emoji) {
         gbc.fill = GridBagConstraints.HORIZONTAL;
         contentPanel.add(serverIPField, gbc);
     
+        // Transport selector
+        JLabel transportLabel = new JLabel("Transport:");
+        transportLabel.setFont(DEFAULT_FONT);
+        gbc.gridx = 0;
+        gbc.gridy = 2;
+        gbc.fill = GridBagConstraints.NONE;
+        contentPanel.add(transportLabel, gbc);
+    
+        JComboBox<ChatTransport> transportBox = new JComboBox<>(ChatTransport.values());
+        transportBox.setFont(DEFAULT_FONT);
+        gbc.gridx = 1;
+        gbc.gridy = 2;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        contentPanel.add(transportBox, gbc);
+    
         // Button panel
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 15, 0));
         buttonPanel.setBackground(BACKGROUND_COLOR);
@@ -1417,8 +1920,8 @@ private String toCodePoint(String emoji) {
     
             try {
                 System.setProperty("java.security.policy", "client.policy");
-                Registry registry = LocateRegistry.getRegistry(serverIP, 1099);
-                service = (ChatService) registry.lookup("ChatService");
+                ChatTransport transport = (ChatTransport) transportBox.getSelectedItem();
+                service = transport.connect(serverIP);
                 
                 // Check if username is available
                 if (service.isUsernameTaken(username)) {
@@ -1430,7 +1933,9 @@ private String toCodePoint(String emoji) {
     
                 // Try to register client
                 callback = new ClientCallbackImpl(this);
+                transport.exportCallback(callback);
                 service.registerClient(username, callback);
+                startLeaseRenewal();
                 
                 // If successful, update UI and close dialog
                 this.name = username;
@@ -1440,6 +1945,7 @@ private String toCodePoint(String emoji) {
                 
                 // Display welcome message
                 displayMessage("SERVER", "Connected to chat server as " + name, false);
+                SwingUtilities.invokeLater(() -> loadHistory(ChatService.DEFAULT_ROOM));
                 
             } catch (RemoteException ex) {
                 String errorMsg = getFriendlyError(ex);
@@ -1448,8 +1954,6 @@ private String toCodePoint(String emoji) {
                     "Connection error: " + errorMsg,
                     "Connection Error",
                     JOptionPane.ERROR_MESSAGE);
-            } catch (NotBoundException ex) {
-                errorLabel.setText("Chat service not found on server");
             } catch (Exception ex) {
                 errorLabel.setText("Unexpected error: " + ex.getMessage());
                 ex.printStackTrace();
@@ -1522,7 +2026,9 @@ private String toCodePoint(String emoji) {
     }
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
-            if (args.length >= 2) {
+            if (args.length >= 3) {
+                new ChatClientGUI(args[0], args[1], ChatTransport.fromString(args[2]));
+            } else if (args.length >= 2) {
                 // If arguments provided, use them directly
                 new ChatClientGUI(args[0], args[1]);
             } else {
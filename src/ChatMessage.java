@@ -0,0 +1,266 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single chat line as it travels from the server to a client. Private messages
+ * have no room. Room messages are numbered 1, 2, 3... within their room, so a client
+ * can tell from the sequence alone whether it missed something; messages outside any
+ * room have sequence 0. The timestamp is the server's clock, or 0 for local notices.
+ *
+ * Routing lives in the envelope rather than in the text: a private message names
+ * its recipient and carries the {@link #PRIVATE} flag, and clients decide how to
+ * show it. The id is the message's position in the server's log counting from 1,
+ * or 0 for messages that were never logged. A client may also number what it sends
+ * ({@link #getClientId()}), so the server can tell a retried send from a new one.
+ *
+ * Messages are written by hand rather than by default serialization: numbers as
+ * varints, absent fields as header bits, and, inside a {@link MessageBatch}, each
+ * sender's name only once per batch.
+ */
+public class ChatMessage implements Externalizable {
+    private static final long serialVersionUID = 2L;
+    private static final int FORMAT_VERSION = 1;
+
+    /** Flag: sent to one recipient rather than to a room. */
+    public static final int PRIVATE = 1;
+
+    // Header bits above the flags, marking which optional fields follow
+    private static final int FLAG_BITS = 0x0F;
+    private static final int HAS_ROOM = 0x10;
+    private static final int HAS_RECIPIENT = 0x20;
+    private static final int COALESCED = 0x40;
+    private static final int HAS_CLIENT_ID = 0x80;
+
+    private long id;
+    private long clientId;
+    private long seq;
+    private long firstSeq; // below seq when several messages were coalesced into this one
+    private long timestamp;
+    private String room;
+    private String sender;
+    private String recipient;
+    private String message;
+    private int flags;
+    private transient volatile byte[] wireForm;
+
+    /** For deserialization only. */
+    public ChatMessage() {
+    }
+
+    public ChatMessage(String sender, String message, boolean isPrivate) {
+        this(null, sender, message, isPrivate);
+    }
+
+    public ChatMessage(String room, String sender, String message, boolean isPrivate) {
+        this(0, 0, room, sender, message, isPrivate);
+    }
+
+    public ChatMessage(long seq, long timestamp, String room, String sender, String message, boolean isPrivate) {
+        this(0, seq, seq, timestamp, room, sender, null, message, isPrivate ? PRIVATE : 0);
+    }
+
+    ChatMessage(long id, long firstSeq, long seq, long timestamp, String room, String sender, String recipient,
+            String message, int flags) {
+        this.id = id;
+        this.firstSeq = firstSeq;
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.room = room;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.message = message;
+        this.flags = flags;
+    }
+
+    /** A message for everyone in {@code room}, as a client sends it. */
+    public static ChatMessage toRoom(String room, String sender, String message) {
+        return new ChatMessage(0, 0, 0, 0, room, sender, null, message, 0);
+    }
+
+    /** A private message for {@code recipient}, as a client sends it. */
+    public static ChatMessage toRecipient(String sender, String recipient, String message) {
+        return new ChatMessage(0, 0, 0, 0, null, sender, recipient, message, PRIVATE);
+    }
+
+    /** This message numbered by its sender, which must keep the number when it retries. */
+    public ChatMessage withClientId(long clientId) {
+        ChatMessage numbered = new ChatMessage(id, firstSeq, seq, timestamp, room, sender, recipient, message, flags);
+        numbered.clientId = clientId;
+        return numbered;
+    }
+
+    /** This message timed at {@code timestamp}, for local notices that have no server time. */
+    public ChatMessage withTimestamp(long timestamp) {
+        ChatMessage timed = new ChatMessage(id, firstSeq, seq, timestamp, room, sender, recipient, message, flags);
+        timed.clientId = clientId;
+        return timed;
+    }
+
+    /** Position of the message in the server's log, or 0 if it was never logged. */
+    public long getId() {
+        return id;
+    }
+
+    /** The sender's own number for the message, or 0 if it has none. */
+    public long getClientId() {
+        return clientId;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    /** Sequence of the oldest message folded into this one; equal to {@link #getSeq()} unless coalesced. */
+    public long getFirstSeq() {
+        return firstSeq;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * This message with {@code next} appended to its text, covering both sequence numbers.
+     */
+    public ChatMessage coalesce(ChatMessage next) {
+        return new ChatMessage(next.id, firstSeq, next.seq, next.timestamp, room, sender, recipient,
+                message + "\n" + next.message, flags);
+    }
+
+    /**
+     * This message as encoded by {@link WireProtocol}. Computed on first use and then
+     * shared by every frame that carries the message; callers must not modify it.
+     */
+    byte[] wireForm() {
+        byte[] encoded = wireForm;
+        if (encoded == null) {
+            encoded = WireProtocol.encodeMessage(this);
+            wireForm = encoded;
+        }
+        return encoded;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    /** Who a private message was sent to; null for room messages and local notices. */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isPrivate() {
+        return (flags & PRIVATE) != 0;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        writeCompact(out, null);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new InvalidObjectException("Unknown message format " + version);
+        }
+        readCompact(in, null);
+    }
+
+    /**
+     * Writes the message without a version byte. With a sender table, a sender
+     * already in it is written as its index and a new one is added to it.
+     */
+    void writeCompact(DataOutput out, Map<String, Integer> senders) throws IOException {
+        int header = flags & FLAG_BITS;
+        if (room != null) {
+            header |= HAS_ROOM;
+        }
+        if (recipient != null) {
+            header |= HAS_RECIPIENT;
+        }
+        if (firstSeq != seq) {
+            header |= COALESCED;
+        }
+        if (clientId != 0) {
+            header |= HAS_CLIENT_ID;
+        }
+        out.writeByte(header);
+        Varints.writeUnsigned(out, id);
+        if (clientId != 0) {
+            Varints.writeUnsigned(out, clientId);
+        }
+        Varints.writeUnsigned(out, seq);
+        if (firstSeq != seq) {
+            Varints.writeUnsigned(out, seq - firstSeq);
+        }
+        Varints.writeUnsigned(out, timestamp);
+        if (room != null) {
+            Varints.writeString(out, room);
+        }
+        Integer senderIndex = senders == null ? null : senders.get(sender);
+        if (senderIndex != null) {
+            Varints.writeUnsigned(out, senderIndex + 1);
+        } else {
+            Varints.writeUnsigned(out, 0);
+            Varints.writeString(out, sender);
+            if (senders != null) {
+                senders.put(sender, senders.size());
+            }
+        }
+        if (recipient != null) {
+            Varints.writeString(out, recipient);
+        }
+        Varints.writeString(out, message);
+    }
+
+    /** Reads what {@link #writeCompact} wrote, with a sender table built the same way. */
+    void readCompact(DataInput in, List<String> senders) throws IOException {
+        int header = in.readUnsignedByte();
+        flags = header & FLAG_BITS;
+        id = Varints.readUnsigned(in);
+        clientId = (header & HAS_CLIENT_ID) != 0 ? Varints.readUnsigned(in) : 0;
+        seq = Varints.readUnsigned(in);
+        firstSeq = (header & COALESCED) != 0 ? seq - Varints.readUnsigned(in) : seq;
+        timestamp = Varints.readUnsigned(in);
+        room = (header & HAS_ROOM) != 0 ? Varints.readString(in) : null;
+        int senderIndex = (int) Varints.readUnsigned(in);
+        if (senderIndex == 0) {
+            sender = Varints.readString(in);
+            if (senders != null) {
+                senders.add(sender);
+            }
+        } else if (senders != null && senderIndex <= senders.size()) {
+            sender = senders.get(senderIndex - 1);
+        } else {
+            throw new InvalidObjectException("Unknown sender index " + senderIndex);
+        }
+        recipient = (header & HAS_RECIPIENT) != 0 ? Varints.readString(in) : null;
+        message = Varints.readString(in);
+    }
+
+    @Override
+    public String toString() {
+        return sender + ": " + message;
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named broadcast domain with its own subscriber index, so a room message only
+ * ever touches the mailboxes of the clients in that room.
+ */
+public class ChatRoom {
+    private static class Snapshot {
+        final long version;
+        final List<ClientMailbox> mailboxes;
+
+        Snapshot(long version, List<ClientMailbox> mailboxes) {
+            this.version = version;
+            this.mailboxes = mailboxes;
+        }
+    }
+
+    private final String name;
+    private final HistoryBuffer history;
+    private final Set<ClientMailbox> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, List.of());
+
+    private long lastSeq; // guarded by this room's lock
+
+    public ChatRoom(String name, int historyCacheSize, long lastSeq) {
+        this.name = name;
+        this.history = new HistoryBuffer(historyCacheSize);
+        this.lastSeq = lastSeq;
+    }
+
+    /** Next sequence number in this room. Callers hold the room's lock while publishing. */
+    public synchronized long nextSeq() {
+        return ++lastSeq;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** The room's most recent messages; older ones are only in the message log. */
+    public HistoryBuffer getHistory() {
+        return history;
+    }
+
+    public boolean join(ClientMailbox mailbox) {
+        if (!subscribers.add(mailbox)) {
+            return false;
+        }
+        mailbox.joinedRoom(this);
+        version.incrementAndGet();
+        return true;
+    }
+
+    public boolean leave(ClientMailbox mailbox) {
+        if (!subscribers.remove(mailbox)) {
+            return false;
+        }
+        mailbox.leftRoom(this);
+        version.incrementAndGet();
+        return true;
+    }
+
+    public boolean contains(ClientMailbox mailbox) {
+        return subscribers.contains(mailbox);
+    }
+
+    public boolean isEmpty() {
+        return subscribers.isEmpty();
+    }
+
+    /**
+     * Current subscribers, rebuilt only after a join or leave. Safe to iterate without locking.
+     */
+    public List<ClientMailbox> getSubscribers() {
+        Snapshot current = snapshot;
+        long latest = version.get();
+        if (current.version == latest) {
+            return current.mailboxes;
+        }
+        List<ClientMailbox> mailboxes = Collections.unmodifiableList(new ArrayList<>(subscribers));
+        snapshot = new Snapshot(latest, mailboxes);
+        return mailboxes;
+    }
+}
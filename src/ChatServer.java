@@ -1,5 +1,8 @@
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ChatServer {
     public static void main(String[] args) {
@@ -12,18 +15,62 @@ public class ChatServer {
             System.setProperty("java.rmi.server.hostname", "127.0.0.1");
             
             // Create and export the service
-            ChatServiceImpl service = new ChatServiceImpl();
+            ServerConfig config = ServerConfig.fromArgs(args);
+            ChatServiceImpl service = new ChatServiceImpl(config);
             
             // Create or get the registry
-            Registry registry = LocateRegistry.createRegistry(1099);
+            Registry registry = LocateRegistry.createRegistry(ChatTransport.RMI_PORT);
             
             // Bind the service
             registry.rebind("ChatService", service);
             
+            // Serve the same service to NIO clients
+            NioChatServer nioServer = null;
+            if (config.getNioPort() > 0) {
+                nioServer = new NioChatServer(service, config.getNioPort(), config.getDispatcherThreads());
+                nioServer.start();
+                System.out.println("NIO transport listening on port " + config.getNioPort());
+            }
+            
+            if (config.getStatsIntervalSeconds() > 0) {
+                startStatsLogging(config.getStatsIntervalSeconds(), service);
+            }
+            
+            NioChatServer nio = nioServer;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (nio != null) {
+                    nio.shutdown();
+                }
+                service.shutdown();
+            }, "shutdown"));
+            
             System.out.println("Chat Server is running...");
         } catch (Exception e) {
             System.err.println("Server exception: " + e.toString());
             e.printStackTrace();
         }
     }
+    
+    private static void startStatsLogging(int intervalSeconds, ChatServiceImpl service) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "socket-stats");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(() -> {
+            if (!ConnectionStats.openConnections().isEmpty()) {
+                System.out.println(ConnectionStats.summary());
+            }
+            RateLimiter limiter = service.getRateLimiter();
+            if (limiter.getSenderRejections() + limiter.getServerRejections() > 0) {
+                System.out.println(limiter.summary());
+            }
+            if (service.getDedupWindow().getAccepted() > 0) {
+                System.out.println(service.getDedupWindow().summary());
+            }
+            if (TlsSocketFactory.getFullHandshakes() > 0) {
+                System.out.println("TLS full handshakes: " + TlsSocketFactory.getFullHandshakes());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
 }
\ No newline at end of file
@@ -1,13 +1,34 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.Map;
 
 public interface ChatService extends Remote {
+    // Every client is a member of this room and cannot leave it
+    String DEFAULT_ROOM = "general";
+
     void registerClient(String name, ClientCallback callback) throws RemoteException;
     void unregisterClient(String name) throws RemoteException;
     void broadcastMessage(String sender, String message) throws RemoteException;
+    void broadcastToRoom(String sender, String room, String message) throws RemoteException;
+    // Sends to the message's recipient if it has one, otherwise to its room (the default room if none)
+    void sendMessage(ChatMessage message) throws RemoteException;
+    void createRoom(String name, String room) throws RemoteException;
+    void joinRoom(String name, String room) throws RemoteException;
+    void leaveRoom(String name, String room) throws RemoteException;
+    List<String> listRooms() throws RemoteException;
+    // Newest messages of the room with a sequence below beforeSeq, oldest first; Long.MAX_VALUE for the latest page
+    List<ChatMessage> getHistory(String room, long beforeSeq, int limit) throws RemoteException;
+    // Messages of the room after afterSeq, oldest first, to catch up after a gap or reconnect.
+    // If too many were missed only the newest are returned; the rest is in getHistory.
+    List<ChatMessage> fetchSince(String room, long afterSeq) throws RemoteException;
     void sendPrivateMessage(String sender, String recipient, String message) throws RemoteException;
     List<String> getActiveClients() throws RemoteException;
     void changeUsername(String oldName, String newName) throws RemoteException;
     boolean isUsernameTaken(String username) throws RemoteException;
+    Map<String, Integer> getMailboxDepths() throws RemoteException;
+    PresenceUpdate getPresenceSince(long version) throws RemoteException;
+
+    // Returns the lease length in milliseconds, or 0 if the client must register again
+    long renewLease(String name) throws RemoteException;
 }
\ No newline at end of file
@@ -1,123 +1,530 @@
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 public class ChatServiceImpl extends UnicastRemoteObject implements ChatService {
-    private Map<String, ClientCallback> clients;
-    private List<String> registeredNames; // For tracking all registered names if needed
+    private static final Pattern ROOM_NAME = Pattern.compile("[\\w-]{1,32}");
+    private static final int MAX_HISTORY_PAGE = 200;
+    private static final int MAX_HISTORY_SCAN = 100_000;
+    private static final int MAX_FETCH_SINCE = 500;
+
+    private final ClientRegistry clients;
+    private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    private final ServerConfig config;
+    private final BroadcastDispatcher dispatcher;
+    private final PresenceTracker presence = new PresenceTracker();
+    private final LeaseSweeper sweeper;
+    private final MessageLog log;
+    private final DedupWindow dedup;
+    private final RateLimiter limiter;
+    private final OfflineStore offline;
+    private final AtomicBoolean logFailureReported = new AtomicBoolean();
 
     public ChatServiceImpl() throws RemoteException {
-        super();
-        clients = new HashMap<>();
-        registeredNames = new ArrayList<>();
+        this(new ServerConfig());
+    }
+
+    public ChatServiceImpl(ServerConfig config) throws RemoteException {
+        this(config, openLog(config));
+    }
+
+    // The log and offline store are opened before the service is exported, so a failure
+    // leaves nothing exported behind and no call can reach a service still recovering
+    private ChatServiceImpl(ServerConfig config, MessageLog log) throws RemoteException {
+        this(config, config.getSocketFactory(), log, openOffline(config, log));
+    }
+
+    private ChatServiceImpl(ServerConfig config, ChatSocketFactory sockets, MessageLog log, OfflineStore offline)
+            throws RemoteException {
+        super(0, sockets, sockets);
+        this.config = config;
+        this.log = log;
+        this.offline = offline;
+        clients = new ClientRegistry(config.getNameHistoryLimit(), config.getNameReservationMinutes());
+        dispatcher = new BroadcastDispatcher(config);
+        dedup = new DedupWindow(config.getDedupWindowSize(), config.getDedupWindowSeconds());
+        limiter = new RateLimiter(config.getSenderRate(), config.getSenderBurst(),
+                config.getServerRate(), config.getServerBurst());
+        sweeper = new LeaseSweeper(clients, this::evictClients);
+        sweeper.start(config.getSweepIntervalSeconds());
+        rooms.put(DEFAULT_ROOM, new ChatRoom(DEFAULT_ROOM, config.getHistoryCacheSize(), log.lastRoomSeq(DEFAULT_ROOM)));
         System.out.println("Chat Service started successfully");
+        System.out.println("Delivering on " + (config.useVirtualThreads()
+                ? "virtual threads" : config.getDispatcherThreads() + " platform threads"));
+        System.out.println("Message log in " + config.getLogDir() + " at offset " + log.getEndOffset());
+        System.out.println("RMI sockets: " + (sockets != null ? sockets : "plain"));
+    }
+
+    private static MessageLog openLog(ServerConfig config) throws RemoteException {
+        try {
+            return MessageLog.open(Paths.get(config.getLogDir()), config.getLogSegmentBytes());
+        } catch (IOException e) {
+            throw new RemoteException("Could not open the message log in " + config.getLogDir(), e);
+        }
+    }
+
+    private static OfflineStore openOffline(ServerConfig config, MessageLog log) throws RemoteException {
+        try {
+            return OfflineStore.open(Paths.get(config.getOfflineDir()),
+                    config.getOfflineMaxMessages(), config.getOfflineRetentionDays());
+        } catch (IOException e) {
+            log.close();
+            throw new RemoteException("Could not open offline mailboxes in " + config.getOfflineDir(), e);
+        }
     }
 
     @Override
-    public synchronized boolean isUsernameTaken(String username) throws RemoteException {
-        // Check both connected clients and all registered names
-        return clients.containsKey(username) || registeredNames.contains(username);
+    public boolean isUsernameTaken(String username) throws RemoteException {
+        // Check both connected clients and recently used names
+        return clients.isTaken(username);
     }
 
     @Override
     public synchronized void registerClient(String name, ClientCallback callback) throws RemoteException {
-        if (isUsernameTaken(name)) {
+        ClientMailbox mailbox = new ClientMailbox(name, callback, config, dispatcher, presence);
+        // Held before anyone can see it, so live messages cannot overtake the offline ones
+        mailbox.holdForBacklog();
+        if (!clients.register(name, mailbox)) {
             throw new RemoteException("Name '" + name + "' is already taken. Please choose another name.");
         }
-        
-        clients.put(name, callback);
-        registeredNames.add(name); // Add to permanent registry
+        ChatRoom defaultRoom = rooms.get(DEFAULT_ROOM);
+        defaultRoom.join(mailbox);
+        try {
+            announce(name + " has joined the chat.");
+            // Reading a large backlog is not the registering client's wait
+            dispatcher.getExecutor().execute(() -> forwardOffline(mailbox, name));
+        } catch (RemoteException | RuntimeException e) {
+            // Not registered after all; the caller may try again under the same name
+            defaultRoom.leave(mailbox);
+            clients.remove(name, mailbox);
+            mailbox.close();
+            throw e;
+        }
+
         System.out.println("New client registered: " + name);
-        broadcastMessage("SERVER", name + " has joined the chat.");
-        updateClientListForAll();
+        presence.joined(name);
+        publishPresence();
     }
 
     @Override
     public synchronized void unregisterClient(String name) throws RemoteException {
-        clients.remove(name);
+        ClientMailbox mailbox = clients.unregister(name);
+        if (mailbox != null) {
+            mailbox.close();
+            leaveAllRooms(mailbox);
+        }
+        limiter.forget(name);
         System.out.println("Client unregistered: " + name);
-        broadcastMessage("SERVER", name + " has left the chat.");
-        updateClientListForAll();
+        announce(name + " has left the chat.");
+        presence.left(name);
+        publishPresence();
     }
 
     @Override
-    public synchronized void changeUsername(String oldName, String newName) throws RemoteException {
-        if (isUsernameTaken(newName)) {
+    public void changeUsername(String oldName, String newName) throws RemoteException {
+        // Outside the lock, so a rename flood is turned away without waiting for it
+        limiter.admit(oldName);
+        rename(oldName, newName);
+    }
+
+    private synchronized void rename(String oldName, String newName) throws RemoteException {
+        ClientMailbox mailbox = clients.get(oldName);
+        if (mailbox == null) {
+            throw new RemoteException("User '" + oldName + "' is not connected.");
+        }
+        if (!clients.rename(oldName, newName)) {
             throw new RemoteException("The username '" + newName + "' is already taken.");
         }
+        mailbox.rename(newName);
+        limiter.renamed(oldName, newName);
 
-        ClientCallback callback = clients.remove(oldName);
-        registeredNames.remove(oldName);
-        clients.put(newName, callback);
-        registeredNames.add(newName);
-        
-        broadcastMessage("SERVER", oldName + " has changed their username to " + newName);
-        updateClientListForAll();
+        announce(oldName + " has changed their username to " + newName);
+        presence.renamed(oldName, newName);
+        publishPresence();
         System.out.println("Username changed from " + oldName + " to " + newName);
     }
 
     @Override
-    public synchronized void broadcastMessage(String sender, String message) throws RemoteException {
-        System.out.println(sender + ": " + message);
-        List<String> deadClients = new ArrayList<>();
+    public void broadcastMessage(String sender, String message) throws RemoteException {
+        limiter.admit(sender);
+        // Everyone is in the default room, so this still reaches the whole server
+        sendToRoom(sender, DEFAULT_ROOM, message);
+    }
 
-        for (Map.Entry<String, ClientCallback> entry : clients.entrySet()) {
-            try {
-                entry.getValue().receiveMessage(sender, message, false);
-            } catch (RemoteException e) {
-                deadClients.add(entry.getKey());
+    @Override
+    public void broadcastToRoom(String sender, String room, String message) throws RemoteException {
+        limiter.admit(sender);
+        sendToRoom(sender, room, message);
+    }
+
+    // Server notices go to everyone and are not rate limited
+    private void announce(String message) throws RemoteException {
+        sendToRoom("SERVER", DEFAULT_ROOM, message);
+    }
+
+    private void sendToRoom(String sender, String room, String message) throws RemoteException {
+        ChatRoom chatRoom = rooms.get(room);
+        if (chatRoom == null) {
+            throw new RemoteException("Room #" + room + " does not exist.");
+        }
+        ClientMailbox senderMailbox = clients.get(sender);
+        if (senderMailbox != null && !chatRoom.contains(senderMailbox)) {
+            throw new RemoteException("You are not a member of #" + room + ".");
+        }
+        System.out.println("[#" + room + "] " + sender + ": " + message);
+        publish(chatRoom, sender, message);
+    }
+
+    @Override
+    public void sendMessage(ChatMessage message) throws RemoteException {
+        long clientId = message.getClientId();
+        if (clientId != 0 && !dedup.firstSend(message.getSender(), clientId)) {
+            // A retry of a send that went through; the client only lost the reply. It costs no tokens.
+            return;
+        }
+        try {
+            limiter.admit(message.getSender());
+            if (message.getRecipient() != null) {
+                sendToRecipient(message.getSender(), message.getRecipient(), message.getMessage());
+            } else {
+                String room = message.getRoom() != null ? message.getRoom() : DEFAULT_ROOM;
+                sendToRoom(message.getSender(), room, message.getMessage());
+            }
+        } catch (RemoteException | RuntimeException e) {
+            // Nothing was delivered, or the send was turned away, so a retry has to be let through
+            if (clientId != 0) {
+                dedup.forget(message.getSender(), clientId);
             }
+            throw e;
         }
+    }
+
+    // Logs, caches and fans out a room message. The room lock keeps all three in sequence order.
+    private void publish(ChatRoom room, String sender, String message) {
+        synchronized (room) {
+            LogRecord record = log.append(room.getName(), room.nextSeq(), sender, null, message);
+            ChatMessage chatMessage = record.toChatMessage();
+            room.getHistory().add(chatMessage, record.getOffset());
 
-        for (String name : deadClients) {
-            clients.remove(name);
-            System.out.println("Removed dead client: " + name);
+            // Lock-free snapshot of the room's subscribers; delivery happens on each client's mailbox
+            dispatcher.broadcast(chatMessage, room.getSubscribers());
         }
+        reportLogFailure();
+    }
 
-        if (!deadClients.isEmpty()) {
-            updateClientListForAll();
+    // Messages still go out once the log has failed, but everyone is told, once, that they are not kept
+    private void reportLogFailure() {
+        if (log.getFailure() != null && logFailureReported.compareAndSet(false, true)) {
+            System.err.println("Messages are no longer saved: " + log.getFailure());
+            dispatcher.broadcast(new ChatMessage("SERVER", "The server can no longer save messages. "
+                    + "Chat goes on, but history and offline messages from now on will be missing.", false),
+                    clients.snapshot());
         }
     }
 
     @Override
-    public synchronized void sendPrivateMessage(String sender, String recipient, String message)
+    public List<ChatMessage> getHistory(String room, long beforeSeq, int limit) throws RemoteException {
+        return new MessageBatch(readRoom(room, 0, beforeSeq, Math.min(limit, MAX_HISTORY_PAGE)));
+    }
+
+    @Override
+    public List<ChatMessage> fetchSince(String room, long afterSeq) throws RemoteException {
+        return new MessageBatch(readRoom(room, afterSeq, Long.MAX_VALUE, MAX_FETCH_SINCE));
+    }
+
+    // Newest messages strictly between the two sequences: the cached ones first, older ones from the log
+    private List<ChatMessage> readRoom(String room, long afterSeq, long beforeSeq, int limit) throws RemoteException {
+        limit = Math.max(0, limit);
+        ChatRoom chatRoom = rooms.get(room);
+        HistoryBuffer cache = chatRoom != null ? chatRoom.getHistory() : null;
+        List<ChatMessage> page = cache != null ? cache.between(afterSeq, beforeSeq, limit) : List.of();
+        long oldestCached = cache != null ? cache.oldestSeq() : -1;
+        if (page.size() == limit || (oldestCached >= 0 && oldestCached <= afterSeq + 1)) {
+            return page;
+        }
+
+        long before = page.isEmpty() ? beforeSeq : page.get(0).getSeq();
+        long fromOffset = cache != null ? cache.oldestOffset() : Long.MAX_VALUE;
+        List<ChatMessage> result = new ArrayList<>(limit);
+        try {
+            for (LogRecord record : log.readRoom(room, fromOffset, afterSeq, before, limit - page.size(), MAX_HISTORY_SCAN)) {
+                result.add(record.toChatMessage());
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Could not read the history of #" + room, e);
+        }
+        result.addAll(page);
+        return result;
+    }
+
+    @Override
+    public synchronized void createRoom(String name, String room) throws RemoteException {
+        limiter.admit(name);
+        ClientMailbox mailbox = requireClient(name);
+        if (room == null || !ROOM_NAME.matcher(room).matches()) {
+            throw new RemoteException("Room names may only use letters, digits, '_' and '-' (up to 32).");
+        }
+        // A room that existed before continues its numbering
+        ChatRoom created = new ChatRoom(room, config.getHistoryCacheSize(), log.lastRoomSeq(room));
+        if (rooms.putIfAbsent(room, created) != null) {
+            throw new RemoteException("Room #" + room + " already exists.");
+        }
+        System.out.println("Room created: #" + room + " by " + name);
+        join(created, mailbox);
+    }
+
+    @Override
+    public synchronized void joinRoom(String name, String room) throws RemoteException {
+        limiter.admit(name);
+        ClientMailbox mailbox = requireClient(name);
+        ChatRoom chatRoom = rooms.get(room);
+        if (chatRoom == null) {
+            throw new RemoteException("Room #" + room + " does not exist.");
+        }
+        join(chatRoom, mailbox);
+    }
+
+    @Override
+    public synchronized void leaveRoom(String name, String room) throws RemoteException {
+        limiter.admit(name);
+        ClientMailbox mailbox = requireClient(name);
+        if (DEFAULT_ROOM.equals(room)) {
+            throw new RemoteException("You cannot leave #" + DEFAULT_ROOM + ".");
+        }
+        ChatRoom chatRoom = rooms.get(room);
+        if (chatRoom == null || !chatRoom.contains(mailbox)) {
+            throw new RemoteException("You are not a member of #" + room + ".");
+        }
+        leave(chatRoom, mailbox);
+    }
+
+    @Override
+    public List<String> listRooms() throws RemoteException {
+        List<String> names = new ArrayList<>(rooms.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public void sendPrivateMessage(String sender, String recipient, String message)
             throws RemoteException {
-        if (!clients.containsKey(recipient)) {
-            throw new RemoteException("Recipient " + recipient + " is not online.");
+        limiter.admit(sender);
+        sendToRecipient(sender, recipient, message);
+    }
+
+    private void sendToRecipient(String sender, String recipient, String message) throws RemoteException {
+        ClientMailbox recipientMailbox = clients.get(recipient);
+        if (recipientMailbox == null) {
+            recipientMailbox = storeOffline(sender, recipient, message);
+            if (recipientMailbox == null) {
+                return;
+            }
         }
 
+        ChatMessage chatMessage = log.append(null, 0, sender, recipient, message).toChatMessage();
+        reportLogFailure();
+
+        // The sender gets the same message back as confirmation that it was accepted,
+        // queued first so that it arrives before the delivery receipt
+        ClientMailbox senderMailbox = clients.get(sender);
+        if (senderMailbox != null) {
+            senderMailbox.offer(chatMessage, null);
+        }
+
+        // Delivered by the recipient's own mailbox; the sender does not wait for it
+        recipientMailbox.offerPrivate(chatMessage, senderMailbox);
+    }
+
+    /**
+     * Leaves the message for a recipient who is offline, or returns their mailbox if
+     * they have registered since. Taking the store's lock orders this against the
+     * backlog a registration takes, so no message is left behind in between.
+     */
+    private ClientMailbox storeOffline(String sender, String recipient, String message) throws RemoteException {
+        ChatMessage chatMessage;
+        synchronized (offline) {
+            ClientMailbox online = clients.get(recipient);
+            if (online != null) {
+                return online;
+            }
+            if (!offline.isKnown(recipient)) {
+                throw new RemoteException("Recipient " + recipient + " is not online.");
+            }
+            try {
+                if (!offline.hasRoom(recipient)) {
+                    chatMessage = null;
+                } else {
+                    chatMessage = log.append(null, 0, sender, recipient, message).toChatMessage();
+                    offline.store(chatMessage);
+                }
+            } catch (IOException e) {
+                throw new RemoteException("Could not keep the message for " + recipient, e);
+            }
+        }
+        if (chatMessage == null) {
+            throw new RemoteException(recipient + " is offline and has too many messages waiting.");
+        }
+        reportLogFailure();
+
+        ClientMailbox senderMailbox = clients.get(sender);
+        if (senderMailbox != null) {
+            senderMailbox.offer(chatMessage, null);
+            senderMailbox.offer(new ChatMessage("SERVER",
+                    recipient + " is offline and will get your message when they sign in.", false), null);
+        }
+        return null;
+    }
+
+    /**
+     * Hands a newly registered client whatever was left for it while it was offline.
+     * The messages stay in the store under the name it registered with, which a rename
+     * in the meantime does not change, until the client has actually received them.
+     */
+    private void forwardOffline(ClientMailbox mailbox, String name) {
+        List<ChatMessage> backlog = List.of();
         try {
-            // Send to recipient
-            clients.get(recipient).receiveMessage("[Private] " + sender, message, true);
+            synchronized (offline) {
+                backlog = offline.read(name);
+            }
+            if (!backlog.isEmpty()) {
+                System.out.println("Forwarding " + backlog.size() + " offline messages to " + name);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read offline messages for " + name + ": " + e.getMessage());
+        } finally {
+            long throughId = backlog.isEmpty() ? -1 : backlog.get(backlog.size() - 1).getId();
+            mailbox.backlogLoaded(backlog, () -> removeOffline(name, throughId));
+        }
+    }
 
-            // Send confirmation to sender
-            if (clients.containsKey(sender)) {
-                clients.get(sender).receiveMessage("[Private] " + sender, "To " + recipient + ": " + message, true);
+    private void removeOffline(String name, long throughId) {
+        try {
+            synchronized (offline) {
+                offline.remove(name, throughId);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not clear delivered offline messages for " + name + ": " + e.getMessage());
+        }
+    }
+
+    private ClientMailbox requireClient(String name) throws RemoteException {
+        ClientMailbox mailbox = clients.get(name);
+        if (mailbox == null) {
+            throw new RemoteException("User '" + name + "' is not connected.");
+        }
+        return mailbox;
+    }
+
+    private void join(ChatRoom room, ClientMailbox mailbox) {
+        if (room.join(mailbox)) {
+            publish(room, "SERVER", mailbox.getName() + " has joined #" + room.getName() + ".");
+        }
+    }
+
+    private void leave(ChatRoom room, ClientMailbox mailbox) {
+        if (!room.leave(mailbox)) {
+            return;
+        }
+        if (room.isEmpty() && !DEFAULT_ROOM.equals(room.getName())) {
+            rooms.remove(room.getName(), room);
+            System.out.println("Room removed: #" + room.getName());
+        } else {
+            publish(room, "SERVER", mailbox.getName() + " has left #" + room.getName() + ".");
+        }
+    }
+
+    private void leaveAllRooms(ClientMailbox mailbox) {
+        for (ChatRoom room : new ArrayList<>(mailbox.getRooms())) {
+            if (DEFAULT_ROOM.equals(room.getName())) {
+                // The server-wide "has left the chat" notice covers it
+                room.leave(mailbox);
+            } else {
+                leave(room, mailbox);
             }
-        } catch (RemoteException e) {
-            clients.remove(recipient);
-            registeredNames.remove(recipient);
-            updateClientListForAll();
-            throw new RemoteException("Failed to send private message: " + e.getMessage());
         }
     }
 
     @Override
-    public synchronized List<String> getActiveClients() throws RemoteException {
-        return new ArrayList<>(clients.keySet());
+    public List<String> getActiveClients() throws RemoteException {
+        return clients.activeNames();
     }
 
-    private void updateClientListForAll() throws RemoteException {
-        List<String> clientNames = getActiveClients();
-        for (Map.Entry<String, ClientCallback> entry : clients.entrySet()) {
-            try {
-                entry.getValue().updateClientList(clientNames);
-            } catch (RemoteException e) {
-                // Will be cleaned up on next broadcast
+    @Override
+    public Map<String, Integer> getMailboxDepths() throws RemoteException {
+        Map<String, Integer> depths = new HashMap<>();
+        for (ClientMailbox mailbox : clients.snapshot()) {
+            depths.put(mailbox.getName(), mailbox.getQueueDepth());
+        }
+        return depths;
+    }
+
+    @Override
+    public long renewLease(String name) throws RemoteException {
+        ClientMailbox mailbox = clients.get(name);
+        if (mailbox == null || mailbox.checkEviction(System.nanoTime()) != null) {
+            return 0;
+        }
+        mailbox.renewLease();
+        return config.getLeaseSeconds() * 1000L;
+    }
+
+    // Called by the sweeper with every client found dead since the last sweep
+    private synchronized void evictClients(List<ClientMailbox> expired) {
+        boolean changed = false;
+        for (ClientMailbox mailbox : expired) {
+            mailbox.close();
+            leaveAllRooms(mailbox);
+            // The name may already belong to a newer registration
+            if (clients.remove(mailbox.getName(), mailbox)) {
+                limiter.forget(mailbox.getName());
+                System.out.println("Evicted client " + mailbox.getName() + " (" + mailbox.checkEviction(System.nanoTime()) + ")");
+                presence.left(mailbox.getName());
+                changed = true;
             }
         }
+
+        if (changed) {
+            publishPresence();
+        }
+    }
+
+    /** Counts of calls turned away by the rate limits. */
+    public RateLimiter getRateLimiter() {
+        return limiter;
+    }
+
+    /** Counts of client message ids seen and retried sends dropped. */
+    public DedupWindow getDedupWindow() {
+        return dedup;
+    }
+
+    @Override
+    public PresenceUpdate getPresenceSince(long version) throws RemoteException {
+        return presence.since(version);
+    }
+
+    /**
+     * Stops background work and writes out any messages still queued for the log.
+     */
+    public void shutdown() {
+        sweeper.shutdown();
+        dispatcher.shutdown();
+        log.close();
+    }
+
+    // Each mailbox sends one delta covering all changes since its last presence update
+    private void publishPresence() {
+        for (ClientMailbox mailbox : clients.snapshot()) {
+            mailbox.presenceChanged();
+        }
     }
-}
\ No newline at end of file
+}
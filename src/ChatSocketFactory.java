@@ -0,0 +1,10 @@
+import java.io.Serializable;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+
+/**
+ * Both halves of an RMI socket factory in one object, so a remote object can be
+ * exported with a single factory whose client half travels in its stub.
+ */
+public interface ChatSocketFactory extends RMIClientSocketFactory, RMIServerSocketFactory, Serializable {
+}
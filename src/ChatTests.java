@@ -0,0 +1,353 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Stand-alone server checks. Run with {@code java ChatTests [name...]}; with no names
+ * every check runs. Exits with status 1 if any fails.
+ *
+ * nio-reconnect: registers over the NIO transport through a relay, drops the relay's
+ * sockets and waits for the lease to lapse, then checks that another client cannot
+ * take the reserved name and that the same client, on its new connection, can.
+ *
+ * rename-budget: spends a sender's whole burst, the last token on a rename, and
+ * checks that a send under the new name is still turned away.
+ *
+ * offline-redelivery: leaves a private message for a user who is away, lets their
+ * next session fail to take it, and checks that the session after that still gets it.
+ *
+ * log-recovery: writes records across several segments, cuts the newest one mid-record,
+ * adds garbage and drops its index, then checks that the reopened log ends at the last
+ * whole record, reads every room correctly and carries on numbering from there.
+ *
+ * log-failure: makes a segment roll fail, checks that appends still get offsets while
+ * nothing more is written, and that a reopened log holds exactly what was durable.
+ */
+public class ChatTests {
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) {
+        Map<String, Check> checks = new LinkedHashMap<>();
+        checks.put("nio-reconnect", ChatTests::nioReconnect);
+        checks.put("rename-budget", ChatTests::renameBudget);
+        checks.put("offline-redelivery", ChatTests::offlineRedelivery);
+        checks.put("log-recovery", ChatTests::logRecovery);
+        checks.put("log-failure", ChatTests::logFailure);
+
+        List<String> names = args.length > 0 ? List.of(args) : new ArrayList<>(checks.keySet());
+        int failed = 0;
+        for (String name : names) {
+            Check check = checks.get(name);
+            if (check == null) {
+                System.out.println("Usage: java ChatTests [" + String.join("|", checks.keySet()) + "]...");
+                System.exit(2);
+            }
+            try {
+                check.run();
+                System.out.println("PASS " + name);
+            } catch (Exception | AssertionError e) {
+                System.out.println("FAIL " + name + ": " + e);
+                failed++;
+            }
+        }
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    private static void nioReconnect() throws Exception {
+        ChatServiceImpl service = startService("--lease-seconds=1", "--sweep-interval-seconds=1");
+        int port = freePort();
+        NioChatServer server = new NioChatServer(service, port, 2);
+        server.start();
+        try (Relay relay = new Relay(port)) {
+            ChatService alice = NioChatClient.connect("localhost", relay.getPort());
+            ClientCallback callback = new SilentCallback();
+            alice.registerClient("alice", callback);
+
+            relay.drop();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (service.getActiveClients().contains("alice")) {
+                check(System.currentTimeMillis() < deadline, "alice was never evicted");
+                Thread.sleep(100);
+            }
+
+            ChatService stranger = NioChatClient.connect("localhost", relay.getPort());
+            try {
+                stranger.registerClient("alice", new SilentCallback());
+                throw new AssertionError("another client took the reserved name");
+            } catch (RemoteException e) {
+                // Still reserved for alice
+            }
+
+            alice.registerClient("alice", callback);
+            check(service.getActiveClients().contains("alice"), "alice did not get the name back");
+        } finally {
+            server.shutdown();
+            stopService(service);
+        }
+    }
+
+    private static void renameBudget() throws Exception {
+        ChatServiceImpl service = startService("--sender-rate=0.01", "--sender-burst=3");
+        try {
+            service.registerClient("flooder", new SilentCallback());
+            service.broadcastMessage("flooder", "one");
+            service.broadcastMessage("flooder", "two");
+            service.changeUsername("flooder", "flooder2");
+            try {
+                service.broadcastMessage("flooder2", "three");
+                throw new AssertionError("the rename gave the sender a fresh burst");
+            } catch (RemoteException e) {
+                check(service.getRateLimiter().getSenderRejections() == 1, "rejected for another reason: " + e);
+            }
+        } finally {
+            stopService(service);
+        }
+    }
+
+    private static void offlineRedelivery() throws Exception {
+        ChatServiceImpl service = startService();
+        CountDownLatch failed = new CountDownLatch(1);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        ClientCallback bob = new SilentCallback() {
+            @Override
+            public void receiveMessages(List<ChatMessage> messages) throws RemoteException {
+                for (ChatMessage message : messages) {
+                    if (message.isPrivate() && failed.getCount() > 0) {
+                        failed.countDown();
+                        throw new RemoteException("connection lost");
+                    }
+                    received.add(message.getMessage());
+                }
+            }
+        };
+        try {
+            service.registerClient("alice", new SilentCallback());
+            service.registerClient("bob", bob);
+            service.unregisterClient("bob");
+            service.sendPrivateMessage("alice", "bob", "while you were out");
+
+            service.registerClient("bob", bob);
+            check(failed.await(5, TimeUnit.SECONDS), "the waiting message was never sent");
+            service.unregisterClient("bob");
+
+            service.registerClient("bob", bob);
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (!"while you were out".equals(received.poll(100, TimeUnit.MILLISECONDS))) {
+                check(System.currentTimeMillis() < deadline, "the failed delivery lost the message");
+            }
+        } finally {
+            stopService(service);
+        }
+    }
+
+    private static void logRecovery() throws Exception {
+        Path dir = Files.createTempDirectory("chat-tests");
+        MessageLog log = MessageLog.open(dir, 4096);
+        int records = 500;
+        for (int i = 0; i < records; i++) {
+            log.append(i % 2 == 0 ? "a" : "b", i / 2 + 1, "sender", null, "message " + i);
+        }
+        awaitDurable(log, records - 1);
+        log.close();
+
+        Path newest;
+        try (Stream<Path> files = Files.list(dir)) {
+            newest = files.filter(p -> p.toString().endsWith(".log")).max(Comparator.naturalOrder()).orElseThrow();
+        }
+        check(!newest.getFileName().toString().startsWith("00000000000000000000"), "the log never rolled");
+        try (FileChannel channel = FileChannel.open(newest, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+            channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 40, 1, 2, 3 }), channel.size());
+        }
+        Files.delete(newest.resolveSibling(newest.getFileName().toString().replace(".log", ".idx")));
+
+        log = MessageLog.open(dir, 4096);
+        try {
+            check(log.getEndOffset() == records - 1, "reopened at " + log.getEndOffset());
+            List<LogRecord> all = log.read(0, records);
+            check(all.size() == records - 1, "read back " + all.size() + " records");
+            for (int i = 0; i < all.size(); i++) {
+                check(all.get(i).getOffset() == i && all.get(i).getMessage().equals("message " + i),
+                        "record " + i + " is " + all.get(i).getOffset() + ": " + all.get(i).getMessage());
+            }
+            // The torn record was the last of room b
+            check(log.lastRoomSeq("a") == 250 && log.lastRoomSeq("b") == 249,
+                    "room sequences " + log.lastRoomSeq("a") + " and " + log.lastRoomSeq("b"));
+            List<Long> seqs = new ArrayList<>();
+            for (LogRecord record : log.readRoom("b", Long.MAX_VALUE, 0, Long.MAX_VALUE, 3, records)) {
+                seqs.add(record.getRoomSeq());
+            }
+            check(seqs.equals(List.of(247L, 248L, 249L)), "room b history " + seqs);
+
+            check(log.append("b", 250, "sender", null, "again").getOffset() == records - 1, "numbering did not carry on");
+            awaitDurable(log, records - 1);
+        } finally {
+            log.close();
+        }
+    }
+
+    private static void logFailure() throws Exception {
+        Path dir = Files.createTempDirectory("chat-tests");
+        // Every record after the first rolls to a new segment, whose checkpoint cannot be written
+        MessageLog log = MessageLog.open(dir, 1);
+        log.append("a", 1, "sender", null, "kept");
+        awaitDurable(log, 0);
+        Files.createDirectory(dir.resolve(String.format("%020d.rooms", 1)));
+
+        check(log.append("a", 2, "sender", null, "lost").getOffset() == 1, "second record misnumbered");
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (log.getFailure() == null) {
+            check(System.currentTimeMillis() < deadline, "the roll did not fail");
+            Thread.sleep(10);
+        }
+        check(log.append("a", 3, "sender", null, "unsaved").getOffset() == 2, "appends stopped after the failure");
+        check(log.read(0, 10).size() == 1, "read " + log.read(0, 10).size() + " records after the failure");
+        log.close();
+
+        log = MessageLog.open(dir, 1);
+        try {
+            check(log.getEndOffset() == 1, "reopened at " + log.getEndOffset());
+            check(log.lastRoomSeq("a") == 1, "room a at " + log.lastRoomSeq("a"));
+            List<LogRecord> all = log.read(0, 10);
+            check(all.size() == 1 && all.get(0).getMessage().equals("kept"), "read back " + all.size() + " records");
+        } finally {
+            log.close();
+        }
+    }
+
+    private static void awaitDurable(MessageLog log, long offset) throws Exception {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (log.read(offset, 1).isEmpty()) {
+            check(System.currentTimeMillis() < deadline, "record " + offset + " never became durable");
+            Thread.sleep(10);
+        }
+    }
+
+    private static ChatServiceImpl startService(String... options) throws IOException {
+        Path dir = Files.createTempDirectory("chat-tests");
+        List<String> args = new ArrayList<>(List.of("--log-dir=" + dir.resolve("log"),
+                "--offline-dir=" + dir.resolve("offline"), "--rmi-sockets=plain"));
+        args.addAll(List.of(options));
+        return new ChatServiceImpl(ServerConfig.fromArgs(args.toArray(new String[0])));
+    }
+
+    private static void stopService(ChatServiceImpl service) throws RemoteException {
+        service.shutdown();
+        UnicastRemoteObject.unexportObject(service, true);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static class SilentCallback implements ClientCallback {
+        @Override
+        public void receiveMessage(String sender, String message, boolean isPrivate) {
+        }
+
+        @Override
+        public void receiveMessages(List<ChatMessage> messages) throws RemoteException {
+        }
+
+        @Override
+        public void updateClientList(List<String> clients) {
+        }
+
+        @Override
+        public void updatePresence(PresenceUpdate update) {
+        }
+
+        @Override
+        public void messagesDelivered(List<Long> ids) {
+        }
+    }
+
+    // Forwards connections to a local port; drop() cuts the open ones, as a lost network would
+    private static class Relay implements AutoCloseable {
+        private final ServerSocket listener = new ServerSocket(0);
+        private final List<Socket> sockets = new ArrayList<>(); // guarded by this
+        private final int target;
+
+        Relay(int target) throws IOException {
+            this.target = target;
+            Thread acceptor = new Thread(this::accept, "relay");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return listener.getLocalPort();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket client = listener.accept();
+                    Socket server = new Socket("localhost", target);
+                    synchronized (this) {
+                        sockets.add(client);
+                        sockets.add(server);
+                    }
+                    pipe(client, server);
+                    pipe(server, client);
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private static void pipe(Socket from, Socket to) {
+            Thread thread = new Thread(() -> {
+                try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                    in.transferTo(out);
+                } catch (IOException e) {
+                    // Dropped
+                }
+            }, "relay-pipe");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void drop() throws IOException {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            sockets.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+            drop();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.security.GeneralSecurityException;
+
+/**
+ * How a client reaches the server.
+ */
+public enum ChatTransport {
+    /** Java RMI through the registry; the server calls back on a separate connection. */
+    RMI,
+    /** One socket carrying binary frames both ways, served by {@link NioChatServer}. */
+    NIO;
+
+    public static final int RMI_PORT = 1099;
+    public static final int NIO_PORT = 1100;
+
+    public static ChatTransport fromString(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+
+    public ChatService connect(String host) throws RemoteException {
+        if (this == NIO) {
+            return NioChatClient.connect(host, NIO_PORT);
+        }
+        try {
+            Registry registry = LocateRegistry.getRegistry(host, RMI_PORT);
+            return (ChatService) registry.lookup("ChatService");
+        } catch (NotBoundException e) {
+            throw new RemoteException("No chat service on " + host, e);
+        }
+    }
+
+    /**
+     * Makes a callback reachable from the server; NIO callbacks need no export.
+     * RMI callbacks are exported over plain sockets, like the server's own default, unless
+     * this process has a {@code javax.net.ssl.keyStore}; then they are accepted over TLS,
+     * which the server has to trust to call back.
+     */
+    public void exportCallback(ClientCallback callback) throws RemoteException {
+        if (this != RMI) {
+            return;
+        }
+        if (!TlsSocketFactory.hasSystemKeyStore()) {
+            UnicastRemoteObject.exportObject(callback, 0);
+            return;
+        }
+        TlsSocketFactory sockets;
+        try {
+            sockets = TlsSocketFactory.fromSystemProperties();
+        } catch (GeneralSecurityException e) {
+            throw new RemoteException("Cannot accept TLS callbacks", e);
+        }
+        UnicastRemoteObject.exportObject(callback, 0, sockets, sockets);
+    }
+}
@@ -5,8 +5,17 @@ import java.util.List;
 public interface ClientCallback extends Remote {
     void receiveMessage(String sender, String message, boolean isPrivate) throws RemoteException;
 
+    // Delivers several queued messages in one round trip
+    void receiveMessages(List<ChatMessage> messages) throws RemoteException;
+
     void updateClientList(List<String> clients) throws RemoteException;
 
+    // Applies joins, leaves and renames since the client's last presence version
+    void updatePresence(PresenceUpdate update) throws RemoteException;
+
+    // Log ids of this client's private messages that reached their recipients, a burst at a time
+    void messagesDelivered(List<Long> ids) throws RemoteException;
+
     // For backward compatibility
     default void receiveMessage(String sender, String message) throws RemoteException {
         receiveMessage(sender, message, false);
@@ -1,21 +1,19 @@
 import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
 import java.util.List;
 
-public class ClientCallbackImpl extends UnicastRemoteObject implements ClientCallback {
+// Exported by the client's ChatTransport, since only RMI needs a remote object
+public class ClientCallbackImpl implements ClientCallback {
     private ChatClient chatClient;
     private ChatClientGUI chatClientGUI;
     private boolean isGUI;
 
     public ClientCallbackImpl(ChatClient client) throws RemoteException {
-        super();
         this.chatClient = client;
         this.chatClientGUI = null;
         this.isGUI = false;
     }
 
     public ClientCallbackImpl(ChatClientGUI clientGUI) throws RemoteException {
-        super();
         this.chatClient = null;
         this.chatClientGUI = clientGUI;
         this.isGUI = true;
@@ -34,6 +32,45 @@ public class ClientCallbackImpl extends UnicastRemoteObject implements ClientCal
         }
     }
 
+    @Override
+    public void receiveMessages(List<ChatMessage> messages) throws RemoteException {
+        if (isGUI) {
+            if (chatClientGUI != null) {
+                chatClientGUI.displayMessages(messages);
+            }
+        } else {
+            if (chatClient != null) {
+                chatClient.displayMessages(messages);
+            }
+        }
+    }
+
+    @Override
+    public void updatePresence(PresenceUpdate update) throws RemoteException {
+        if (isGUI) {
+            if (chatClientGUI != null) {
+                chatClientGUI.applyPresence(update);
+            }
+        } else {
+            if (chatClient != null) {
+                chatClient.applyPresence(update);
+            }
+        }
+    }
+
+    @Override
+    public void messagesDelivered(List<Long> ids) throws RemoteException {
+        if (isGUI) {
+            if (chatClientGUI != null) {
+                chatClientGUI.messagesDelivered(ids);
+            }
+        } else {
+            if (chatClient != null) {
+                chatClient.messagesDelivered(ids);
+            }
+        }
+    }
+
     @Override
     public void updateClientList(List<String> clients) throws RemoteException {
         if (isGUI) {
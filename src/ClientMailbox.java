@@ -0,0 +1,463 @@
+import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded outbound queue for one client, drained by its own delivery task.
+ *
+ * Messages that arrive within a short window of each other, up to the configured
+ * batch size, are delivered in a single {@link ClientCallback#receiveMessages} call.
+ * Clients built before that method existed are detected on the first failed call
+ * and served one message at a time from then on.
+ *
+ * A slow client only ever fills its own mailbox; what happens once it is full is
+ * decided by the configured {@link OverflowPolicy}. Presence changes are not
+ * queued: the mailbox remembers the last presence version it sent and, before the
+ * next batch, sends one delta covering everything that changed since. Delivery
+ * receipts work the same way: once a private message reaches its recipient, its id
+ * is handed to the sender's mailbox, which sends all ids collected since its last
+ * receipt in one {@link ClientCallback#messagesDelivered} call.
+ *
+ * A newly registered client may have private messages waiting from while it was
+ * offline. Its mailbox is held until they are loaded, then sends them all in one
+ * batch ahead of anything that arrived live in the meantime, and only once that
+ * call succeeds are they taken out of the offline store.
+ *
+ * A mailbox never removes its client itself. When delivery fails, the client falls
+ * too far behind or its lease runs out, the mailbox is closed and flagged, and the
+ * lease sweeper evicts it together with every other flagged client in one pass.
+ */
+public class ClientMailbox {
+    private static class Entry {
+        private ChatMessage message;
+        private final List<BroadcastDispatcher.Completion> completions = new ArrayList<>(1);
+        private final ClientMailbox receiptTo;
+        private final List<Long> receiptIds;
+
+        Entry(ChatMessage message, BroadcastDispatcher.Completion completion, ClientMailbox receiptTo) {
+            this.message = message;
+            if (completion != null) {
+                completions.add(completion);
+            }
+            this.receiptTo = receiptTo;
+            this.receiptIds = receiptTo != null ? new ArrayList<>(List.of(message.getId())) : null;
+        }
+
+        // Folds a later message from the same sender into this one
+        void absorb(Entry next) {
+            message = message.coalesce(next.message);
+            completions.addAll(next.completions);
+            if (receiptIds != null && next.receiptIds != null) {
+                receiptIds.addAll(next.receiptIds);
+            }
+        }
+
+        void complete() {
+            for (BroadcastDispatcher.Completion completion : completions) {
+                completion.done();
+            }
+        }
+
+        void delivered() {
+            if (receiptTo != null) {
+                receiptTo.receipts(receiptIds);
+            }
+        }
+    }
+
+    private volatile String name;
+    private final ClientCallback callback;
+    private final ServerConfig config;
+    private final BroadcastDispatcher dispatcher;
+    private final PresenceTracker presence;
+
+    private final Set<ChatRoom> rooms = ConcurrentHashMap.newKeySet();
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final AtomicBoolean presenceChanged = new AtomicBoolean();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    private volatile boolean legacyCallback;
+    private volatile boolean legacyPresence;
+    private volatile boolean legacyReceipts;
+    private volatile boolean awaitingBacklog;
+    private volatile long presenceVersion;
+    private volatile long leaseDeadline;
+    private volatile String evictionReason;
+
+    // Guarded by this
+    private long overHighWaterSince = -1;
+    private int skippedMessages;
+    private List<Long> pendingReceipts = new ArrayList<>();
+    private List<ChatMessage> backlog;
+    private Runnable backlogDelivered;
+
+    public ClientMailbox(String name, ClientCallback callback, ServerConfig config,
+                         BroadcastDispatcher dispatcher, PresenceTracker presence) {
+        this.name = name;
+        this.callback = callback;
+        this.config = config;
+        this.dispatcher = dispatcher;
+        this.presence = presence;
+        renewLease();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void rename(String newName) {
+        this.name = newName;
+    }
+
+    public ClientCallback getCallback() {
+        return callback;
+    }
+
+    public Set<ChatRoom> getRooms() {
+        return rooms;
+    }
+
+    void joinedRoom(ChatRoom room) {
+        rooms.add(room);
+    }
+
+    void leftRoom(ChatRoom room) {
+        rooms.remove(room);
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public void renewLease() {
+        leaseDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getLeaseSeconds());
+    }
+
+    /**
+     * Returns why this client should be evicted, or null while it is healthy.
+     */
+    public String checkEviction(long now) {
+        if (evictionReason == null && now - leaseDeadline > 0) {
+            markForEviction("lease expired");
+        }
+        return evictionReason;
+    }
+
+    private void markForEviction(String reason) {
+        if (evictionReason == null) {
+            evictionReason = reason;
+        }
+        close();
+    }
+
+    public void offer(ChatMessage message, BroadcastDispatcher.Completion completion) {
+        offer(new Entry(message, completion, null));
+    }
+
+    /**
+     * Queues a private message and, once this client has it, sends {@code sender} a
+     * receipt. A message dropped on the way gets no receipt.
+     */
+    public void offerPrivate(ChatMessage message, ClientMailbox sender) {
+        offer(new Entry(message, null, sender));
+    }
+
+    private void offer(Entry entry) {
+        List<Entry> dropped = new ArrayList<>(1);
+        boolean slowConsumer;
+
+        synchronized (this) {
+            if (closed) {
+                dropped.add(entry);
+                slowConsumer = false;
+            } else {
+                if (queue.size() >= config.getMailboxCapacity()) {
+                    makeRoom(entry, dropped);
+                } else {
+                    queue.addLast(entry);
+                }
+                slowConsumer = checkHighWater();
+            }
+        }
+
+        for (Entry lost : dropped) {
+            lost.complete();
+        }
+        if (slowConsumer) {
+            markForEviction("too slow");
+        } else {
+            schedule();
+        }
+    }
+
+    /** Holds back live messages until {@link #backlogLoaded} supplies the offline ones. */
+    public void holdForBacklog() {
+        awaitingBacklog = true;
+    }
+
+    /**
+     * Messages left while this client was offline, to deliver before everything else.
+     * {@code delivered} runs once the client has them; it does not run if delivery fails.
+     */
+    public void backlogLoaded(List<ChatMessage> messages, Runnable delivered) {
+        synchronized (this) {
+            backlog = messages;
+            backlogDelivered = delivered;
+        }
+        awaitingBacklog = false;
+        schedule();
+    }
+
+    // Ids of messages this client sent that have now been delivered
+    private void receipts(List<Long> ids) {
+        if (closed || legacyReceipts) {
+            return;
+        }
+        synchronized (this) {
+            pendingReceipts.addAll(ids);
+        }
+        schedule();
+    }
+
+    public void presenceChanged() {
+        if (!closed) {
+            presenceChanged.set(true);
+            schedule();
+        }
+    }
+
+    public void close() {
+        List<Entry> dropped;
+        synchronized (this) {
+            closed = true;
+            dropped = new ArrayList<>(queue);
+            queue.clear();
+        }
+        for (Entry entry : dropped) {
+            entry.complete();
+        }
+    }
+
+    private void makeRoom(Entry entry, List<Entry> dropped) {
+        ChatMessage message = entry.message;
+        if (config.getOverflowPolicy() == OverflowPolicy.COALESCE) {
+            Entry last = queue.peekLast();
+            if (last != null && last.message.getSender().equals(message.getSender())
+                    && last.message.isPrivate() == message.isPrivate()
+                    && Objects.equals(last.message.getRecipient(), message.getRecipient())
+                    && Objects.equals(last.message.getRoom(), message.getRoom())) {
+                last.absorb(entry);
+                return;
+            }
+            skippedMessages++;
+        }
+        dropped.add(queue.pollFirst());
+        queue.addLast(entry);
+    }
+
+    private boolean checkHighWater() {
+        if (queue.size() <= config.getMailboxHighWater()) {
+            overHighWaterSince = -1;
+            return false;
+        }
+
+        long now = System.nanoTime();
+        if (overHighWaterSince < 0) {
+            overHighWaterSince = now;
+            return false;
+        }
+        return config.getOverflowPolicy() == OverflowPolicy.DISCONNECT
+                && now - overHighWaterSince >= TimeUnit.SECONDS.toNanos(config.getDisconnectAfterSeconds());
+    }
+
+    private void schedule() {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            // Give a burst a moment to accumulate unless a full batch is already waiting
+            if (config.getBatchWindowMillis() > 0 && getQueueDepth() < config.getBatchSize()) {
+                dispatcher.executeLater(this::drain, config.getBatchWindowMillis());
+            } else {
+                dispatcher.getExecutor().execute(this::drain);
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            while (!closed) {
+                boolean sentPresence = presenceChanged.getAndSet(false);
+                if (sentPresence) {
+                    deliverPresence();
+                }
+                if (awaitingBacklog) {
+                    break;
+                }
+                deliverBacklog();
+
+                List<Entry> batch = new ArrayList<>();
+                int skipped;
+                synchronized (this) {
+                    while (batch.size() < config.getBatchSize() && !queue.isEmpty()) {
+                        batch.add(queue.pollFirst());
+                    }
+                    skipped = skippedMessages;
+                    skippedMessages = 0;
+                    checkHighWater();
+                }
+
+                List<ChatMessage> messages = new ArrayList<>(batch.size() + 1);
+                if (skipped > 0) {
+                    messages.add(new ChatMessage("SERVER",
+                            skipped + " messages were skipped because your connection fell behind.", false));
+                }
+                for (Entry entry : batch) {
+                    messages.add(entry.message);
+                }
+
+                if (!messages.isEmpty()) {
+                    try {
+                        deliver(messages);
+                        // A successful callback is as good as a lease renewal
+                        renewLease();
+                        for (Entry entry : batch) {
+                            entry.delivered();
+                        }
+                    } finally {
+                        for (Entry entry : batch) {
+                            entry.complete();
+                        }
+                    }
+                }
+
+                // After the batch, so receipts follow the echoes of the messages they confirm
+                boolean sentReceipts = deliverReceipts();
+                if (messages.isEmpty() && !sentPresence && !sentReceipts) {
+                    break;
+                }
+            }
+        } catch (RemoteException e) {
+            markForEviction("connection failed");
+        } finally {
+            scheduled.set(false);
+        }
+
+        // Pick up anything offered between the last poll and clearing the flag
+        if (hasPending()) {
+            schedule();
+        }
+    }
+
+    private void deliver(List<ChatMessage> messages) throws RemoteException {
+        if (!legacyCallback) {
+            try {
+                callback.receiveMessages(new MessageBatch(messages));
+                return;
+            } catch (RemoteException e) {
+                if (!isUnsupportedMethod(e)) {
+                    throw e;
+                }
+                legacyCallback = true;
+            }
+        }
+        for (ChatMessage message : messages) {
+            // Older clients have no rooms or recipients; spell them out in the text
+            String sender = message.getSender();
+            String text = message.getMessage();
+            if (message.getRoom() != null && !message.getRoom().equals(ChatService.DEFAULT_ROOM)) {
+                sender = "[#" + message.getRoom() + "] " + sender;
+            }
+            if (message.getRecipient() != null) {
+                if (message.getSender().equals(name)) {
+                    text = "To " + message.getRecipient() + ": " + text;
+                }
+                sender = "[Private] " + sender;
+            }
+            callback.receiveMessage(sender, text, message.isPrivate());
+        }
+    }
+
+    private void deliverPresence() throws RemoteException {
+        PresenceUpdate update = presence.since(presenceVersion);
+        if (update.getVersion() == presenceVersion) {
+            return;
+        }
+        if (!legacyPresence) {
+            try {
+                callback.updatePresence(update);
+                presenceVersion = update.getVersion();
+                return;
+            } catch (RemoteException e) {
+                if (!isUnsupportedMethod(e)) {
+                    throw e;
+                }
+                legacyPresence = true;
+            }
+        }
+        callback.updateClientList(presence.getMembers());
+        presenceVersion = update.getVersion();
+    }
+
+    private void deliverBacklog() throws RemoteException {
+        List<ChatMessage> messages;
+        Runnable delivered;
+        synchronized (this) {
+            messages = backlog;
+            delivered = backlogDelivered;
+            backlog = null;
+            backlogDelivered = null;
+        }
+        if (messages != null && !messages.isEmpty()) {
+            deliver(messages);
+            renewLease();
+            if (delivered != null) {
+                delivered.run();
+            }
+        }
+    }
+
+    private boolean deliverReceipts() throws RemoteException {
+        List<Long> ids;
+        synchronized (this) {
+            if (pendingReceipts.isEmpty()) {
+                return false;
+            }
+            ids = pendingReceipts;
+            pendingReceipts = new ArrayList<>();
+        }
+        if (legacyReceipts) {
+            return false;
+        }
+        try {
+            callback.messagesDelivered(ids);
+        } catch (RemoteException e) {
+            if (!isUnsupportedMethod(e)) {
+                throw e;
+            }
+            // Older clients have nowhere to show receipts
+            legacyReceipts = true;
+        }
+        return true;
+    }
+
+    // Older clients reject methods their exported interface does not declare
+    private static boolean isUnsupportedMethod(RemoteException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof UnmarshalException && t.getMessage() != null
+                    && t.getMessage().contains("unrecognized method hash")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized boolean hasPending() {
+        return !awaitingBacklog && (!queue.isEmpty() || !pendingReceipts.isEmpty() || backlog != null)
+                || presenceChanged.get();
+    }
+}
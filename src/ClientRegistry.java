@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent index of connected clients and recently used names.
+ *
+ * Every name, connected or historical, lives in one hash map so that checking and
+ * claiming a name is a single atomic per-key operation. Names of clients that have
+ * left stay reserved for a while; how many are remembered and for how long is
+ * bounded. A reserved name can be reclaimed by the callback that last held it, so a
+ * client whose lease lapsed can register again under its own name.
+ *
+ * Readers never lock: fan-out uses a cached array that is rebuilt from the map only
+ * after a change.
+ */
+public class ClientRegistry {
+    private static class Claim {
+        final String name;
+        final ClientMailbox mailbox; // null once the client has left
+        final ClientCallback owner;
+        final long releasedAt;
+
+        Claim(String name, ClientMailbox mailbox, ClientCallback owner, long releasedAt) {
+            this.name = name;
+            this.mailbox = mailbox;
+            this.owner = owner;
+            this.releasedAt = releasedAt;
+        }
+    }
+
+    private static class Snapshot {
+        final long version;
+        final List<ClientMailbox> mailboxes;
+
+        Snapshot(long version, List<ClientMailbox> mailboxes) {
+            this.version = version;
+            this.mailboxes = mailboxes;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Claim> names = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ClientMailbox> active = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Claim> history = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger historySize = new AtomicInteger();
+    private final int historyLimit;
+    private final long reservationNanos;
+
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, List.of());
+
+    public ClientRegistry(int historyLimit, long reservationMinutes) {
+        this.historyLimit = historyLimit;
+        this.reservationNanos = TimeUnit.MINUTES.toNanos(reservationMinutes);
+    }
+
+    public boolean isTaken(String name) {
+        Claim claim = names.get(name);
+        return claim != null && !isExpired(claim);
+    }
+
+    public ClientMailbox get(String name) {
+        return active.get(name);
+    }
+
+    /**
+     * Claims the name for the given mailbox unless it is connected or still reserved.
+     */
+    public boolean register(String name, ClientMailbox mailbox) {
+        Claim claim = new Claim(name, mailbox, mailbox.getCallback(), 0);
+        Claim result = names.compute(name, (key, existing) ->
+                existing == null || isExpired(existing) || isReclaim(existing, claim) ? claim : existing);
+        if (result != claim) {
+            return false;
+        }
+        active.put(name, mailbox);
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Moves a connected client to a free name. The old name is released immediately.
+     */
+    public boolean rename(String oldName, String newName) {
+        ClientMailbox mailbox = active.get(oldName);
+        if (mailbox == null) {
+            return false;
+        }
+        if (!register(newName, mailbox)) {
+            return false;
+        }
+        names.remove(oldName);
+        active.remove(oldName, mailbox);
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Disconnects the named client and keeps its name reserved.
+     */
+    public ClientMailbox unregister(String name) {
+        ClientMailbox mailbox = active.get(name);
+        return mailbox != null && remove(name, mailbox) ? mailbox : null;
+    }
+
+    /**
+     * Disconnects the client only if the name still belongs to this mailbox.
+     */
+    public boolean remove(String name, ClientMailbox mailbox) {
+        if (!active.remove(name, mailbox)) {
+            return false;
+        }
+        Claim released = new Claim(name, null, mailbox.getCallback(), System.nanoTime());
+        names.computeIfPresent(name, (key, existing) -> existing.mailbox == mailbox ? released : existing);
+        version.incrementAndGet();
+        remember(released);
+        return true;
+    }
+
+    /**
+     * Connected clients, as of the last change. Safe to iterate without locking.
+     */
+    public List<ClientMailbox> snapshot() {
+        Snapshot current = snapshot;
+        long latest = version.get();
+        if (current.version == latest) {
+            return current.mailboxes;
+        }
+        List<ClientMailbox> mailboxes = Collections.unmodifiableList(new ArrayList<>(active.values()));
+        snapshot = new Snapshot(latest, mailboxes);
+        return mailboxes;
+    }
+
+    public List<String> activeNames() {
+        return new ArrayList<>(active.keySet());
+    }
+
+    private void remember(Claim released) {
+        history.add(released);
+        if (historySize.incrementAndGet() > historyLimit) {
+            Claim oldest = history.poll();
+            if (oldest != null) {
+                historySize.decrementAndGet();
+                names.remove(oldest.name, oldest);
+            }
+        }
+    }
+
+    private static boolean isReclaim(Claim existing, Claim claim) {
+        return existing.mailbox == null && existing.owner.equals(claim.owner);
+    }
+
+    private boolean isExpired(Claim claim) {
+        return claim.mailbox == null && System.nanoTime() - claim.releasedAt >= reservationNanos;
+    }
+}
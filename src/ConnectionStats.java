@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counters for one socket made by {@link TunedSocketFactory}.
+ *
+ * Payload bytes are what RMI read or wrote; wire bytes are what actually crossed
+ * the network after compression and framing. Open connections can be listed, and
+ * closed ones are folded into running totals so nothing is lost when they go away.
+ */
+public class ConnectionStats {
+    private static final Set<ConnectionStats> OPEN = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong CLOSED_PAYLOAD_IN = new AtomicLong();
+    private static final AtomicLong CLOSED_PAYLOAD_OUT = new AtomicLong();
+    private static final AtomicLong CLOSED_WIRE_IN = new AtomicLong();
+    private static final AtomicLong CLOSED_WIRE_OUT = new AtomicLong();
+
+    private final String peer;
+    final AtomicLong payloadIn = new AtomicLong();
+    final AtomicLong payloadOut = new AtomicLong();
+    final AtomicLong wireIn = new AtomicLong();
+    final AtomicLong wireOut = new AtomicLong();
+
+    private ConnectionStats(String peer) {
+        this.peer = peer;
+    }
+
+    static ConnectionStats open(String peer) {
+        ConnectionStats stats = new ConnectionStats(peer);
+        OPEN.add(stats);
+        return stats;
+    }
+
+    void close() {
+        if (OPEN.remove(this)) {
+            CLOSED_PAYLOAD_IN.addAndGet(payloadIn.get());
+            CLOSED_PAYLOAD_OUT.addAndGet(payloadOut.get());
+            CLOSED_WIRE_IN.addAndGet(wireIn.get());
+            CLOSED_WIRE_OUT.addAndGet(wireOut.get());
+        }
+    }
+
+    public static List<ConnectionStats> openConnections() {
+        return new ArrayList<>(OPEN);
+    }
+
+    /** Totals over all connections, open and closed, followed by one line per open connection. */
+    public static String summary() {
+        long payloadIn = CLOSED_PAYLOAD_IN.get();
+        long payloadOut = CLOSED_PAYLOAD_OUT.get();
+        long wireIn = CLOSED_WIRE_IN.get();
+        long wireOut = CLOSED_WIRE_OUT.get();
+        List<ConnectionStats> open = openConnections();
+        StringBuilder lines = new StringBuilder();
+        for (ConnectionStats stats : open) {
+            payloadIn += stats.payloadIn.get();
+            payloadOut += stats.payloadOut.get();
+            wireIn += stats.wireIn.get();
+            wireOut += stats.wireOut.get();
+            lines.append(System.lineSeparator()).append("  ").append(stats);
+        }
+        return "Sockets: " + open.size() + " open, " + format(payloadIn, wireIn, payloadOut, wireOut) + lines;
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    public long getPayloadIn() {
+        return payloadIn.get();
+    }
+
+    public long getPayloadOut() {
+        return payloadOut.get();
+    }
+
+    public long getWireIn() {
+        return wireIn.get();
+    }
+
+    public long getWireOut() {
+        return wireOut.get();
+    }
+
+    @Override
+    public String toString() {
+        return peer + " " + format(payloadIn.get(), wireIn.get(), payloadOut.get(), wireOut.get());
+    }
+
+    private static String format(long payloadIn, long wireIn, long payloadOut, long wireOut) {
+        return "in " + payloadIn + " B (" + wireIn + " on wire), out " + payloadOut + " B (" + wireOut + " on wire)";
+    }
+}
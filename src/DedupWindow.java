@@ -0,0 +1,121 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recently accepted client message ids, so a send that is retried after its reply
+ * was lost is recognised and not delivered a second time.
+ *
+ * Ids are kept per session, i.e. per sender name, and only for a while: at most
+ * {@code maxEntries} of them and none longer than the window, whichever runs out
+ * first. A retry arriving after its id left the window is delivered again, so the
+ * window should outlast the client's retries by a wide margin.
+ */
+public class DedupWindow {
+    private static class Entry {
+        final String key;
+        final long addedAt;
+
+        Entry(String key, long addedAt) {
+            this.key = key;
+            this.addedAt = addedAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> seen = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxEntries;
+    private final long windowNanos;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong evictedEarly = new AtomicLong();
+
+    public DedupWindow(int maxEntries, long windowSeconds) {
+        this.maxEntries = maxEntries;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+    }
+
+    /**
+     * Records the id and returns true, or returns false if the session already sent it
+     * within the window.
+     */
+    public boolean firstSend(String session, long id) {
+        long now = System.nanoTime();
+        expire(now);
+        Entry entry = new Entry(key(session, id), now);
+        if (seen.putIfAbsent(entry.key, entry) != null) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+        order.add(entry);
+        accepted.incrementAndGet();
+        if (size.incrementAndGet() > maxEntries) {
+            evictOldest();
+        }
+        return true;
+    }
+
+    /** Forgets an id whose send failed, so that a retry is delivered. */
+    public void forget(String session, long id) {
+        // The queue entry stays until it expires; it no longer matches anything in the map
+        seen.remove(key(session, id));
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /** Sends dropped because their id was already in the window. */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /** Ids pushed out by the size limit before their time was up; a sign the window is too small. */
+    public long getEvictedEarly() {
+        return evictedEarly.get();
+    }
+
+    public String summary() {
+        return "dedup: " + seen.size() + " ids held, " + accepted.get() + " accepted, "
+                + duplicates.get() + " duplicates dropped, " + evictedEarly.get() + " evicted early";
+    }
+
+    private void expire(long now) {
+        Entry head = order.peek();
+        if (head == null || now - head.addedAt <= windowNanos) {
+            return;
+        }
+        synchronized (order) {
+            while ((head = order.peek()) != null && now - head.addedAt > windowNanos) {
+                remove(order.poll());
+            }
+        }
+    }
+
+    private void evictOldest() {
+        synchronized (order) {
+            while (size.get() > maxEntries) {
+                Entry oldest = order.poll();
+                if (oldest == null) {
+                    return;
+                }
+                remove(oldest);
+                evictedEarly.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        seen.remove(entry.key, entry);
+        size.decrementAndGet();
+    }
+
+    // Ids are numbers, so the last slash always separates them from the session
+    private static String key(String session, long id) {
+        return session + '/' + id;
+    }
+}
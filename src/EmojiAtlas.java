@@ -0,0 +1,104 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Twemoji sprites cut from the one sheet {@link EmojiAtlasPacker} writes.
+ *
+ * The index, a few tens of KB, is read when the atlas is loaded. The sheet is decoded
+ * once, for the first sprite asked for, and every sprite is a sub-image sharing its
+ * pixels, so nothing is opened, decoded or copied per emoji.
+ *
+ * Sprites are numbered in index order, and text is split into emoji and their sprite
+ * numbers by the {@link EmojiTokenizer} built from the same index.
+ */
+public class EmojiAtlas {
+    public static final String SHEET_NAME = "atlas.png";
+    public static final String INDEX_NAME = "atlas.idx";
+    static final int MAGIC = 0x454D4A41; // "EMJA"
+    static final int VERSION = 1;
+    private static final String RESOURCE_DIR = "/assets/twemoji/";
+
+    // x, y, width and height of each sprite, 16 bits each
+    private final long[] sprites;
+    private final EmojiTokenizer tokenizer;
+    private BufferedImage sheet;
+
+    private EmojiAtlas(long[] sprites, EmojiTokenizer tokenizer) {
+        this.sprites = sprites;
+        this.tokenizer = tokenizer;
+    }
+
+    /** The atlas packed into the client's resources. */
+    public static EmojiAtlas load() throws IOException {
+        try (InputStream in = EmojiAtlas.class.getResourceAsStream(RESOURCE_DIR + INDEX_NAME)) {
+            if (in == null) {
+                throw new IOException("No " + RESOURCE_DIR + INDEX_NAME + " resource; run EmojiAtlasPacker");
+            }
+            return readIndex(new DataInputStream(new BufferedInputStream(in)));
+        }
+    }
+
+    /** An atlas without sprites, for when none is packed; every emoji falls back to a font. */
+    public static EmojiAtlas empty() {
+        return new EmojiAtlas(new long[0], new EmojiTokenizer(0));
+    }
+
+    public int size() {
+        return sprites.length;
+    }
+
+    public EmojiTokenizer getTokenizer() {
+        return tokenizer;
+    }
+
+    /** The image of sprite {@code sprite}, as numbered by the tokenizer. */
+    public synchronized BufferedImage getSprite(int sprite) throws IOException {
+        if (sheet == null) {
+            sheet = readSheet();
+        }
+        long rect = sprites[sprite];
+        return sheet.getSubimage((int) (rect >>> 48), (int) (rect >>> 32) & 0xFFFF,
+                (int) (rect >>> 16) & 0xFFFF, (int) rect & 0xFFFF);
+    }
+
+    private static long rect(int x, int y, int width, int height) {
+        return (long) x << 48 | (long) y << 32 | (long) width << 16 | height;
+    }
+
+    private static EmojiAtlas readIndex(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not an emoji atlas index, or from another version");
+        }
+        int count = (int) Varints.readUnsigned(in);
+        long[] sprites = new long[count];
+        // Most emoji are one or two code points
+        EmojiTokenizer tokenizer = new EmojiTokenizer(count * 2);
+        for (int i = 0; i < count; i++) {
+            int[] codePoints = new int[(int) Varints.readUnsigned(in)];
+            for (int j = 0; j < codePoints.length; j++) {
+                codePoints[j] = (int) Varints.readUnsigned(in);
+            }
+            tokenizer.add(codePoints, i);
+            sprites[i] = rect((int) Varints.readUnsigned(in), (int) Varints.readUnsigned(in),
+                    (int) Varints.readUnsigned(in), (int) Varints.readUnsigned(in));
+        }
+        return new EmojiAtlas(sprites, tokenizer);
+    }
+
+    private static BufferedImage readSheet() throws IOException {
+        try (InputStream in = EmojiAtlas.class.getResourceAsStream(RESOURCE_DIR + SHEET_NAME)) {
+            if (in == null) {
+                throw new IOException("No " + RESOURCE_DIR + SHEET_NAME + " resource");
+            }
+            BufferedImage sheet = ImageIO.read(new BufferedInputStream(in));
+            if (sheet == null) {
+                throw new IOException(RESOURCE_DIR + SHEET_NAME + " is not an image");
+            }
+            return sheet;
+        }
+    }
+}
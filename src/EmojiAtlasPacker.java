@@ -0,0 +1,195 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Build step that packs the Twemoji PNGs into one sprite sheet and index for {@link EmojiAtlas}.
+ *
+ * Run as {@code java EmojiAtlasPacker <png dir> <out dir> [--size=32]}, normally
+ * {@code java -cp bin EmojiAtlasPacker twemoji/72x72 src/assets/twemoji}; the build then
+ * copies the assets into {@code bin}. Each file is named for its code points in hex
+ * joined by '-', as Twemoji ships them. Every image is scaled to fit {@code size} pixels
+ * and placed on shelves in a sheet about as wide as it is tall.
+ *
+ * The client draws emoji at 16 pixels, so 32 keeps them sharp on a 2x screen. That
+ * costs most of the size win: for the 3,689 Twemoji the sheet is about 2.8 MB against
+ * 3.2 MB of separate PNGs, where {@code --size=24} gives about 0.9 MB but is scaled up,
+ * and blurred, at 2x. What 32 still saves is the thousands of resource lookups and
+ * decodes on first use. The sheet is written at the highest PNG compression.
+ *
+ * The index is the magic number and version, the sprite count, then per sprite its code
+ * points and its x, y, width and height, all as varints.
+ */
+public class EmojiAtlasPacker {
+    private static final int DEFAULT_SIZE = 32;
+
+    private static class Sprite {
+        final int[] codePoints;
+        final BufferedImage image;
+        int x;
+        int y;
+
+        Sprite(int[] codePoints, BufferedImage image) {
+            this.codePoints = codePoints;
+            this.image = image;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java EmojiAtlasPacker <png dir> <out dir> [--size=" + DEFAULT_SIZE + "]");
+            return;
+        }
+        Path source = Paths.get(args[0]);
+        Path target = Paths.get(args[1]);
+        int size = DEFAULT_SIZE;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("--size=")) {
+                size = Integer.parseInt(args[i].substring("--size=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        List<Sprite> sprites = new ArrayList<>();
+        long sourceBytes = 0;
+        try (Stream<Path> files = Files.list(source)) {
+            for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                String fileName = file.getFileName().toString();
+                if (!fileName.endsWith(".png")) {
+                    continue;
+                }
+                BufferedImage image = ImageIO.read(file.toFile());
+                if (image == null) {
+                    System.err.println("Skipping " + file + ": not a readable PNG");
+                    continue;
+                }
+                sourceBytes += Files.size(file);
+                sprites.add(new Sprite(codePoints(fileName.substring(0, fileName.length() - 4)), scale(image, size)));
+            }
+        }
+        if (sprites.isEmpty()) {
+            throw new IOException("No PNG files in " + source);
+        }
+
+        BufferedImage sheet = pack(sprites);
+        Files.createDirectories(target);
+        Path sheetFile = target.resolve(EmojiAtlas.SHEET_NAME);
+        Path indexFile = target.resolve(EmojiAtlas.INDEX_NAME);
+        writePng(sheet, sheetFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile)))) {
+            writeIndex(out, sprites);
+        }
+        System.out.printf("Packed %d emoji into a %dx%d sheet: %d KB sheet and %d KB index, from %d KB in %d files%n",
+                sprites.size(), sheet.getWidth(), sheet.getHeight(), Files.size(sheetFile) / 1024,
+                Files.size(indexFile) / 1024, sourceBytes / 1024, sprites.size());
+    }
+
+    // "1f1fa-1f1f8" names the flag made of those two code points
+    private static int[] codePoints(String name) {
+        String[] parts = name.split("-");
+        int[] codePoints = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            codePoints[i] = HexFormat.fromHexDigits(parts[i]);
+        }
+        return codePoints;
+    }
+
+    private static BufferedImage scale(BufferedImage image, int size) {
+        double factor = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
+    // Tallest first, left to right on shelves as wide as the square root of the total area
+    private static BufferedImage pack(List<Sprite> sprites) {
+        List<Sprite> byHeight = new ArrayList<>(sprites);
+        byHeight.sort(Comparator.comparingInt((Sprite sprite) -> sprite.image.getHeight()).reversed());
+        long area = 0;
+        int widest = 0;
+        for (Sprite sprite : sprites) {
+            area += (long) sprite.image.getWidth() * sprite.image.getHeight();
+            widest = Math.max(widest, sprite.image.getWidth());
+        }
+        int width = Math.max(widest, (int) Math.ceil(Math.sqrt(area)));
+
+        int x = 0;
+        int y = 0;
+        int shelfHeight = 0;
+        for (Sprite sprite : byHeight) {
+            if (x + sprite.image.getWidth() > width) {
+                x = 0;
+                y += shelfHeight;
+                shelfHeight = 0;
+            }
+            sprite.x = x;
+            sprite.y = y;
+            x += sprite.image.getWidth();
+            shelfHeight = Math.max(shelfHeight, sprite.image.getHeight());
+        }
+        if (y + shelfHeight > 0xFFFF || width > 0xFFFF) {
+            throw new IllegalStateException("Sheet too large for the index: " + width + "x" + (y + shelfHeight));
+        }
+
+        BufferedImage sheet = new BufferedImage(width, y + shelfHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = sheet.createGraphics();
+        for (Sprite sprite : sprites) {
+            g.drawImage(sprite.image, sprite.x, sprite.y, null);
+        }
+        g.dispose();
+        return sheet;
+    }
+
+    private static void writePng(BufferedImage image, Path file) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0f); // Smallest file; only the build waits for it
+        Files.deleteIfExists(file);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static void writeIndex(DataOutputStream out, List<Sprite> sprites) throws IOException {
+        out.writeInt(EmojiAtlas.MAGIC);
+        out.writeByte(EmojiAtlas.VERSION);
+        Varints.writeUnsigned(out, sprites.size());
+        for (Sprite sprite : sprites) {
+            Varints.writeUnsigned(out, sprite.codePoints.length);
+            for (int codePoint : sprite.codePoints) {
+                Varints.writeUnsigned(out, codePoint);
+            }
+            Varints.writeUnsigned(out, sprite.x);
+            Varints.writeUnsigned(out, sprite.y);
+            Varints.writeUnsigned(out, sprite.image.getWidth());
+            Varints.writeUnsigned(out, sprite.image.getHeight());
+        }
+    }
+}
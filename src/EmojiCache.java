@@ -0,0 +1,152 @@
+import java.awt.GraphicsEnvironment;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.font.GraphicAttribute;
+import java.awt.font.ImageGraphicAttribute;
+import java.awt.font.TextAttribute;
+import java.awt.image.BaseMultiResolutionImage;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Emoji images ready to draw, by atlas sprite and size, made from the {@link EmojiAtlas}.
+ *
+ * An entry is rasterized once, with a quality downscale, at its size in logical pixels
+ * and, on a high-density screen, at the screen's scale too; the two make one
+ * multi-resolution image, and Java 2D draws whichever matches the device. The text style
+ * that puts the emoji inline in a row is made once with it and shared by every row.
+ *
+ * Entries are dropped least recently used first once their pixels exceed the byte budget.
+ * The scale is the default screen's when the cache is made.
+ */
+public class EmojiCache {
+    public static final long DEFAULT_MAX_BYTES = 4L << 20;
+
+    private static class Entry {
+        final Image image; // null if the sprite could not be read
+        final Map<TextAttribute, Object> style;
+        final long bytes;
+
+        Entry(Image image, Map<TextAttribute, Object> style, long bytes) {
+            this.image = image;
+            this.style = style;
+            this.bytes = bytes;
+        }
+    }
+
+    private final EmojiAtlas atlas;
+    private final long maxBytes;
+    private final double scale;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long evictions;
+
+    public EmojiCache(EmojiAtlas atlas, long maxBytes, double scale) {
+        this.atlas = atlas;
+        this.maxBytes = maxBytes;
+        this.scale = scale;
+    }
+
+    /** Scale of the default screen, 1 when there is none. */
+    public static double screenScale() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return 1;
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDefaultConfiguration().getDefaultTransform().getScaleX();
+    }
+
+    /** Splits text into emoji and the sprites to draw them with. */
+    public EmojiTokenizer getTokenizer() {
+        return atlas.getTokenizer();
+    }
+
+    /** The sprite as an image {@code size} logical pixels square, or null if it could not be read. */
+    public synchronized Image getImage(int sprite, int size) {
+        return entry(sprite, size).image;
+    }
+
+    /**
+     * Text attributes that draw the sprite inline at {@code size}, in place of a single
+     * character, or null if it could not be read.
+     */
+    public synchronized Map<TextAttribute, Object> getStyle(int sprite, int size) {
+        return entry(sprite, size).style;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private Entry entry(int sprite, int size) {
+        long key = (long) sprite << 32 | size;
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        BufferedImage image;
+        try {
+            image = atlas.getSprite(sprite);
+        } catch (IOException e) {
+            System.err.println("Could not read emoji sprite: " + e.getMessage());
+            image = null;
+        }
+        if (image == null) {
+            // Small, but counted, so a broken sheet cannot grow the map without bound
+            entry = new Entry(null, null, 64);
+        } else {
+            BufferedImage base = rasterize(image, size);
+            Image drawn = base;
+            long imageBytes = 4L * size * size;
+            int pixels = (int) Math.round(size * scale);
+            if (pixels > size) {
+                drawn = new BaseMultiResolutionImage(base, rasterize(image, pixels));
+                imageBytes += 4L * pixels * pixels;
+            }
+            // Sits on the baseline like a capital, dipping a little below it
+            Map<TextAttribute, Object> style = Map.of(TextAttribute.CHAR_REPLACEMENT,
+                    new ImageGraphicAttribute(drawn, GraphicAttribute.ROMAN_BASELINE, 0, size - size / 5));
+            entry = new Entry(drawn, style, imageBytes);
+        }
+        entries.put(key, entry);
+        bytes += entry.bytes;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && entries.size() > 1) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+        return entry;
+    }
+
+    // Halves while more than twice too big, since one bilinear step that far skips pixels
+    private static BufferedImage rasterize(BufferedImage sprite, int pixels) {
+        BufferedImage image = sprite;
+        while (image.getWidth() / 2 >= pixels) {
+            image = resize(image, image.getWidth() / 2);
+        }
+        return image.getWidth() == pixels && image != sprite ? image : resize(image, pixels);
+    }
+
+    private static BufferedImage resize(BufferedImage image, int pixels) {
+        BufferedImage resized = new BufferedImage(pixels, pixels, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = resized.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, pixels, pixels, null);
+        g.dispose();
+        return resized;
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.Arrays;
+
+/**
+ * Finds emoji in text by longest match against the code point sequences of the
+ * {@link EmojiAtlas}, so ZWJ sequences, skin tones, keycaps and tag flags come out
+ * whole, as the one sprite drawn for them.
+ *
+ * The sequences are compiled into a trie held in flat arrays: an open-addressed table
+ * from (node, code point) to child node, and each node's sprite. Matching walks it
+ * from a position one code point at a time, with no regex, allocation or substrings.
+ *
+ * Twemoji leaves the U+FE0F variation selector out of most names, and text may or may
+ * not carry it, so the trie also holds every sequence without it, and a U+FE0F the
+ * trie has no branch for is taken as part of the emoji. A pictographic code point with
+ * no sprite still matches on its own, with sprite -1, so it can be drawn with a font.
+ */
+public class EmojiTokenizer {
+    /** What {@link #match} returns where no emoji starts. */
+    public static final long NO_MATCH = -1;
+    private static final int VARIATION_SELECTOR = 0xFE0F;
+    private static final int ROOT = 0;
+
+    private long[] keys; // node << 21 | code point, or -1 for an empty slot
+    private int[] children;
+    private int[] sprites = new int[16]; // per node, -1 if no sequence ends there
+    private int nodes = 1;
+    private int edges;
+
+    EmojiTokenizer(int expectedCodePoints) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedCodePoints * 2)) * 2;
+        keys = new long[capacity];
+        children = new int[capacity];
+        Arrays.fill(keys, -1);
+        Arrays.fill(sprites, -1);
+    }
+
+    /** Adds a sequence, and its form without U+FE0F, unless another sprite has that form already. */
+    void add(int[] codePoints, int sprite) {
+        insert(codePoints, codePoints.length, sprite, true);
+        int[] bare = new int[codePoints.length];
+        int length = 0;
+        for (int codePoint : codePoints) {
+            if (codePoint != VARIATION_SELECTOR) {
+                bare[length++] = codePoint;
+            }
+        }
+        if (length > 0 && length < codePoints.length) {
+            insert(bare, length, sprite, false);
+        }
+    }
+
+    /**
+     * The longest emoji starting at {@code start}, as its end and sprite packed for
+     * {@link #end} and {@link #sprite}, or {@link #NO_MATCH}.
+     */
+    public long match(CharSequence text, int start) {
+        int node = ROOT;
+        int end = -1;
+        int sprite = -1;
+        int pos = start;
+        while (pos < text.length()) {
+            int codePoint = Character.codePointAt(text, pos);
+            int child = child(node, codePoint);
+            if (child < 0 && codePoint == VARIATION_SELECTOR && node != ROOT) {
+                // Same node, one char further; it belongs to the emoji matched so far
+                pos++;
+                if (sprites[node] >= 0) {
+                    end = pos;
+                }
+                continue;
+            }
+            if (child < 0) {
+                break;
+            }
+            node = child;
+            pos += Character.charCount(codePoint);
+            if (sprites[node] >= 0) {
+                end = pos;
+                sprite = sprites[node];
+            }
+        }
+        if (end < 0) {
+            int codePoint = Character.codePointAt(text, start);
+            if (!Character.isExtendedPictographic(codePoint)) {
+                return NO_MATCH;
+            }
+            end = start + Character.charCount(codePoint);
+        }
+        // Left over where a longer sequence through it did not match
+        if (end < text.length() && text.charAt(end) == VARIATION_SELECTOR) {
+            end++;
+        }
+        return (long) end << 32 | (sprite & 0xFFFFFFFFL);
+    }
+
+    /** Sprite of the whole of {@code emoji}, or -1 if it is not exactly one known emoji. */
+    public int spriteOf(CharSequence emoji) {
+        long match = emoji.length() > 0 ? match(emoji, 0) : NO_MATCH;
+        return match != NO_MATCH && end(match) == emoji.length() ? sprite(match) : -1;
+    }
+
+    /** Index just past the matched emoji. */
+    public static int end(long match) {
+        return (int) (match >>> 32);
+    }
+
+    /** Atlas sprite of the matched emoji, or -1 if it has none. */
+    public static int sprite(long match) {
+        return (int) match;
+    }
+
+    private void insert(int[] codePoints, int length, int sprite, boolean replace) {
+        int node = ROOT;
+        for (int i = 0; i < length; i++) {
+            int child = child(node, codePoints[i]);
+            if (child < 0) {
+                child = newNode();
+                put(node, codePoints[i], child);
+            }
+            node = child;
+        }
+        if (replace || sprites[node] < 0) {
+            sprites[node] = sprite;
+        }
+    }
+
+    private int child(int node, int codePoint) {
+        long key = (long) node << 21 | codePoint;
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; keys[slot] != -1; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return children[slot];
+            }
+        }
+        return -1;
+    }
+
+    private void put(int node, int codePoint, int child) {
+        if ((edges + 1) * 2 > keys.length) {
+            grow();
+        }
+        long key = (long) node << 21 | codePoint;
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != -1) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        children[slot] = child;
+        edges++;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldChildren = children;
+        keys = new long[oldKeys.length * 2];
+        children = new int[oldKeys.length * 2];
+        Arrays.fill(keys, -1);
+        edges = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != -1) {
+                put((int) (oldKeys[i] >>> 21), (int) (oldKeys[i] & 0x1FFFFF), oldChildren[i]);
+            }
+        }
+    }
+
+    private int newNode() {
+        if (nodes == sprites.length) {
+            int oldLength = sprites.length;
+            sprites = Arrays.copyOf(sprites, oldLength * 2);
+            Arrays.fill(sprites, oldLength, sprites.length, -1);
+        }
+        return nodes++;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size ring of a room's most recent messages, so the common history and
+ * catch-up requests never touch the disk. Each message keeps its log offset so a
+ * request reaching past the ring knows where in the log to continue.
+ */
+public class HistoryBuffer {
+    private final ChatMessage[] ring;
+    private final long[] offsets;
+    private int head; // slot the next message goes into
+    private int size;
+
+    public HistoryBuffer(int capacity) {
+        this.ring = new ChatMessage[capacity];
+        this.offsets = new long[capacity];
+    }
+
+    public synchronized void add(ChatMessage message, long logOffset) {
+        if (ring.length == 0) {
+            return;
+        }
+        ring[head] = message;
+        offsets[head] = logOffset;
+        head = (head + 1) % ring.length;
+        if (size < ring.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Up to {@code limit} of the newest cached messages with a sequence number strictly
+     * between {@code afterSeq} and {@code beforeSeq}, oldest first.
+     */
+    public synchronized List<ChatMessage> between(long afterSeq, long beforeSeq, int limit) {
+        int end = firstAtOrAfter(beforeSeq);
+        int start = Math.max(firstAtOrAfter(afterSeq + 1), end - limit);
+        List<ChatMessage> page = new ArrayList<>(Math.max(0, end - start));
+        for (int i = start; i < end; i++) {
+            page.add(get(i));
+        }
+        return page;
+    }
+
+    /** Sequence number of the oldest cached message, or -1 if nothing is cached. */
+    public synchronized long oldestSeq() {
+        return size == 0 ? -1 : get(0).getSeq();
+    }
+
+    /** Log offset of the oldest cached message, or {@code Long.MAX_VALUE} if nothing is cached. */
+    public synchronized long oldestOffset() {
+        return size == 0 ? Long.MAX_VALUE : offsets[slot(0)];
+    }
+
+    // Messages are in sequence order, so binary search for the first one at or after seq
+    private int firstAtOrAfter(long seq) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (get(mid).getSeq() < seq) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // i-th cached message counting from the oldest
+    private ChatMessage get(int i) {
+        return ring[slot(i)];
+    }
+
+    private int slot(int i) {
+        return (head - size + i + ring.length) % ring.length;
+    }
+}
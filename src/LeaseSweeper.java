@@ -0,0 +1,53 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Periodically collects clients whose lease ran out or whose mailbox gave up on
+ * them, and hands them to the service to be evicted in a single batch.
+ */
+public class LeaseSweeper {
+    private final ClientRegistry clients;
+    private final Consumer<List<ClientMailbox>> evictor;
+    private final ScheduledExecutorService scheduler;
+
+    public LeaseSweeper(ClientRegistry clients, Consumer<List<ClientMailbox>> evictor) {
+        this.clients = clients;
+        this.evictor = evictor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start(int intervalSeconds) {
+        scheduler.scheduleWithFixedDelay(this::sweep, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void sweep() {
+        long now = System.nanoTime();
+        List<ClientMailbox> expired = new ArrayList<>();
+        for (ClientMailbox mailbox : clients.snapshot()) {
+            if (mailbox.checkEviction(now) != null) {
+                expired.add(mailbox);
+            }
+        }
+
+        if (!expired.isEmpty()) {
+            try {
+                evictor.accept(expired);
+            } catch (RuntimeException e) {
+                // Never let one bad sweep cancel the schedule
+                System.err.println("Lease sweep failed: " + e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * One message as stored in the {@link MessageLog}. Room messages have no recipient
+ * and carry their sequence within the room; private messages have no room.
+ */
+public class LogRecord {
+    private final long offset;
+    private final long timestamp;
+    private final String room;
+    private final long roomSeq;
+    private final String sender;
+    private final String recipient;
+    private final String message;
+
+    public LogRecord(long offset, long timestamp, String room, long roomSeq, String sender, String recipient,
+            String message) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.room = room;
+        this.roomSeq = roomSeq;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.message = message;
+    }
+
+    /** Position of this record in the log; increases by one per record. */
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public long getRoomSeq() {
+        return roomSeq;
+    }
+
+    /** The record as delivered to clients. */
+    public ChatMessage toChatMessage() {
+        return new ChatMessage(offset + 1, roomSeq, roomSeq, timestamp, room, sender, recipient, message,
+                isPrivate() ? ChatMessage.PRIVATE : 0);
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isPrivate() {
+        return recipient != null;
+    }
+
+    @Override
+    public String toString() {
+        return offset + " " + (isPrivate() ? sender + " -> " + recipient : "[#" + room + "] " + sender) + ": " + message;
+    }
+}
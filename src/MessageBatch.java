@@ -0,0 +1,69 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A read-only list of messages that serializes compactly: a sender who appears
+ * several times is written once and then referred to by index. Deliveries and
+ * history pages are sent as batches.
+ */
+public class MessageBatch extends AbstractList<ChatMessage> implements RandomAccess, Externalizable {
+    private static final long serialVersionUID = 1L;
+    private static final int FORMAT_VERSION = 1;
+
+    private List<ChatMessage> messages;
+
+    /** For deserialization only. */
+    public MessageBatch() {
+        this.messages = List.of();
+    }
+
+    public MessageBatch(List<ChatMessage> messages) {
+        this.messages = messages;
+    }
+
+    @Override
+    public ChatMessage get(int index) {
+        return messages.get(index);
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        Varints.writeUnsigned(out, messages.size());
+        Map<String, Integer> senders = new HashMap<>();
+        for (ChatMessage message : messages) {
+            message.writeCompact(out, senders);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new InvalidObjectException("Unknown batch format " + version);
+        }
+        int size = (int) Varints.readUnsigned(in);
+        List<ChatMessage> read = new ArrayList<>(Math.min(size, 1024));
+        List<String> senders = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            ChatMessage message = new ChatMessage();
+            message.readCompact(in, senders);
+            read.add(message);
+        }
+        messages = read;
+    }
+}
@@ -0,0 +1,720 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only log of every chat message.
+ *
+ * The log is a directory of segment files, each named after the offset of its first
+ * record and rolled over once it reaches the configured size. {@link #append} only
+ * queues the record; a single writer thread writes whatever has queued up and forces
+ * it to disk once, so a burst of messages shares one fsync and senders never wait on
+ * the disk. Next to each segment is a sparse index with one entry every few KB, which
+ * bounds both the seek cost of a read and the tail scan needed at startup to find the
+ * last complete record. Sealed segments are read through one read-only memory map
+ * each; the active one changes size with every sync, so it is read a window at a time
+ * with positional reads rather than mapped again.
+ *
+ * The log also remembers the last sequence number of every room. Each segment starts
+ * with a small checkpoint of those numbers, so startup only replays the newest segment.
+ *
+ * A record is an int body length and the CRC32 of the body, followed by the body:
+ * version byte, offset, timestamp, flags, then room and room sequence, sender,
+ * recipient and message, strings as length-prefixed UTF-8 (room and recipient only
+ * when present). Version 1 records have no room sequence.
+ */
+public class MessageLog {
+    private static final byte VERSION = 2;
+    private static final byte HAS_ROOM = 1;
+    private static final byte HAS_RECIPIENT = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int MIN_BODY_BYTES = 1 + 8 + 8 + 1 + 4 + 4;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_ENTRY_BYTES = 8;
+    private static final int MAX_BATCH = 4096;
+    private static final int QUEUE_CAPACITY = 65_536;
+    private static final int ROOM_SCAN_CHUNK = 1024;
+    private static final int READ_WINDOW_BYTES = 64 * 1024;
+
+    private static class Segment {
+        final long baseOffset;
+        final Path path;
+        final Path indexPath;
+        final Path checkpointPath;
+
+        // Visible to readers: everything below durableSize has been forced to disk
+        volatile int durableSize;
+        volatile long endOffset;
+        volatile boolean sealed;
+
+        // Writer thread only
+        FileChannel channel;
+        FileChannel indexChannel;
+        int size;
+        int lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+
+        private int[] indexOffsets;
+        private int[] indexPositions;
+        private int indexCount;
+        private MappedByteBuffer map;
+
+        Segment(Path dir, long baseOffset) {
+            this.baseOffset = baseOffset;
+            this.path = segmentFile(dir, baseOffset, "log");
+            this.indexPath = segmentFile(dir, baseOffset, "idx");
+            this.checkpointPath = segmentFile(dir, baseOffset, "rooms");
+        }
+
+        synchronized void addIndexEntry(long offset, int position) {
+            loadIndex();
+            if (indexCount == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexOffsets[indexCount] = (int) (offset - baseOffset);
+            indexPositions[indexCount] = position;
+            indexCount++;
+        }
+
+        // File position of the last indexed record at or before the offset
+        synchronized int positionFor(long offset) {
+            loadIndex();
+            int relative = (int) Math.max(0, offset - baseOffset);
+            int low = 0;
+            int high = indexCount - 1;
+            int found = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexOffsets[mid] <= relative) {
+                    found = indexPositions[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        // Drops entries that point past the end of the data, e.g. after a torn write
+        synchronized void truncateIndex(int dataSize) {
+            loadIndex();
+            while (indexCount > 0 && indexPositions[indexCount - 1] >= dataSize) {
+                indexCount--;
+            }
+        }
+
+        synchronized int lastIndexedPosition() {
+            loadIndex();
+            return indexCount == 0 ? 0 : indexPositions[indexCount - 1];
+        }
+
+        synchronized int indexCount() {
+            loadIndex();
+            return indexCount;
+        }
+
+        // Sealed segments load their index on first read, not at startup
+        private void loadIndex() {
+            if (indexOffsets != null) {
+                return;
+            }
+            indexOffsets = new int[64];
+            indexPositions = new int[64];
+            try {
+                if (Files.exists(indexPath)) {
+                    ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+                    while (entries.remaining() >= INDEX_ENTRY_BYTES) {
+                        long offset = baseOffset + entries.getInt();
+                        addIndexEntry(offset, entries.getInt());
+                    }
+                }
+            } catch (IOException e) {
+                // Reads still work without an index, they just scan from the start
+                System.err.println("Could not read log index " + indexPath + ": " + e);
+            }
+        }
+
+        // Bytes from..to of the file; mapped once sealed, as the size no longer changes
+        ByteBuffer view(int from, int to) throws IOException {
+            if (sealed) {
+                synchronized (this) {
+                    if (map == null) {
+                        try (FileChannel reader = FileChannel.open(path, StandardOpenOption.READ)) {
+                            map = reader.map(FileChannel.MapMode.READ_ONLY, 0, durableSize);
+                        }
+                    }
+                    return map.slice(from, to - from);
+                }
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(to - from);
+            try (FileChannel reader = FileChannel.open(path, StandardOpenOption.READ)) {
+                while (bytes.hasRemaining()) {
+                    if (reader.read(bytes, from + bytes.position()) < 0) {
+                        throw new EOFException(path + " is shorter than " + to + " bytes");
+                    }
+                }
+            }
+            return bytes.flip();
+        }
+    }
+
+    /**
+     * Walks the durable records of a segment from a file position, a window at a time,
+     * so a read near the end of a large active segment does not copy all of it.
+     */
+    private static class RecordCursor {
+        private final Segment segment;
+        private final int end;
+        private int windowStart;
+        private ByteBuffer window = ByteBuffer.allocate(0);
+
+        RecordCursor(Segment segment, int from) {
+            this.segment = segment;
+            this.end = segment.durableSize;
+            this.windowStart = from;
+        }
+
+        // Body of the next record, or null after the last one
+        ByteBuffer next() throws IOException {
+            if (!hasRecord()) {
+                windowStart += window.position();
+                if (end - windowStart < HEADER_BYTES) {
+                    return null;
+                }
+                window = segment.view(windowStart, Math.min(end, windowStart + READ_WINDOW_BYTES));
+                if (!hasRecord()) {
+                    // One record larger than the window
+                    window = segment.view(windowStart, Math.min(end, windowStart + HEADER_BYTES + window.getInt(0)));
+                    if (!hasRecord()) {
+                        return null;
+                    }
+                }
+            }
+            int length = window.getInt();
+            window.getInt();
+            ByteBuffer body = window.slice(window.position(), length);
+            window.position(window.position() + length);
+            return body;
+        }
+
+        private boolean hasRecord() {
+            return window.remaining() >= HEADER_BYTES
+                    && window.remaining() - HEADER_BYTES >= window.getInt(window.position());
+        }
+    }
+
+    private static Path segmentFile(Path dir, long baseOffset, String extension) {
+        return dir.resolve(String.format("%020d.%s", baseOffset, extension));
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private final CRC32 writeCrc = new CRC32();
+    private Segment active;
+    private long nextOffset;
+    private final Map<String, Long> lastRoomSeqs = new HashMap<>(); // guarded by this
+    private final Map<String, Long> writtenRoomSeqs = new HashMap<>(); // writer thread only
+    private volatile boolean closed;
+    private volatile Exception failure;
+
+    private ByteBuffer out = ByteBuffer.allocate(1 << 16);
+    private final ByteBuffer indexOut = ByteBuffer.allocate(MAX_BATCH * INDEX_ENTRY_BYTES);
+    private final AtomicLong syncCount = new AtomicLong();
+
+    private MessageLog(Path dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.writer = new Thread(this::runWriter, "message-log");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Opens the log in the given directory, creating it if needed. Only the tail of
+     * the newest segment is scanned, so startup time does not grow with the log.
+     */
+    public static MessageLog open(Path dir, int segmentBytes) throws IOException {
+        MessageLog log = new MessageLog(dir, segmentBytes);
+        log.recover();
+        log.writer.start();
+        return log;
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(dir);
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(".log"))
+                    .forEach(n -> bases.add(Long.parseLong(n.substring(0, n.length() - 4))));
+        }
+        bases.sort(null);
+
+        Segment previous = null;
+        for (long base : bases) {
+            Segment segment = new Segment(dir, base);
+            if (previous != null) {
+                previous.endOffset = base;
+            }
+            segment.durableSize = (int) Files.size(segment.path);
+            segment.sealed = true;
+            segments.put(base, segment);
+            previous = segment;
+        }
+
+        if (previous == null) {
+            active = openSegment(0);
+        } else {
+            active = previous;
+            active.sealed = false;
+            recoverTail(active);
+        }
+        nextOffset = active.endOffset;
+        recoverRoomSeqs(active);
+    }
+
+    // Checkpoint from the start of the segment plus whatever the segment itself adds
+    private void recoverRoomSeqs(Segment segment) throws IOException {
+        if (Files.exists(segment.checkpointPath)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(segment.checkpointPath))) {
+                int rooms = in.readInt();
+                for (int i = 0; i < rooms; i++) {
+                    writtenRoomSeqs.put(in.readUTF(), in.readLong());
+                }
+            }
+        }
+        RecordCursor cursor = new RecordCursor(segment, 0);
+        for (ByteBuffer body = cursor.next(); body != null; body = cursor.next()) {
+            LogRecord record = decode(body);
+            if (record.getRoom() != null) {
+                writtenRoomSeqs.merge(record.getRoom(), record.getRoomSeq(), Math::max);
+            }
+        }
+        lastRoomSeqs.putAll(writtenRoomSeqs);
+    }
+
+    private void writeCheckpoint(long baseOffset) throws IOException {
+        Path path = segmentFile(dir, baseOffset, "rooms");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+            out.writeInt(writtenRoomSeqs.size());
+            for (Map.Entry<String, Long> entry : writtenRoomSeqs.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Finds the last complete record after the last index entry and cuts off anything
+     * torn. Index entries for the records it scans are added again, as the index is
+     * not forced and may have lost its newest ones.
+     */
+    private void recoverTail(Segment segment) throws IOException {
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = segment.channel.size();
+        segment.truncateIndex((int) fileSize);
+
+        int position = segment.lastIndexedPosition();
+        ByteBuffer tail = ByteBuffer.allocate((int) (fileSize - position));
+        segment.channel.read(tail, position);
+        tail.flip();
+
+        ByteBuffer rebuilt = ByteBuffer.allocate((tail.limit() / INDEX_INTERVAL_BYTES + 1) * INDEX_ENTRY_BYTES);
+        int lastIndexed = segment.indexCount() == 0 ? -INDEX_INTERVAL_BYTES : position;
+        long expected = -1;
+        CRC32 crc = new CRC32();
+        while (tail.remaining() >= HEADER_BYTES) {
+            int start = tail.position();
+            int length = tail.getInt();
+            int checksum = tail.getInt();
+            if (length < MIN_BODY_BYTES || length > tail.remaining()) {
+                break;
+            }
+            crc.reset();
+            crc.update(tail.array(), tail.position(), length);
+            long offset = tail.getLong(tail.position() + 1);
+            if ((int) crc.getValue() != checksum || (expected >= 0 && offset != expected)) {
+                tail.position(start);
+                break;
+            }
+            if (position + start - lastIndexed >= INDEX_INTERVAL_BYTES) {
+                lastIndexed = position + start;
+                segment.addIndexEntry(offset, lastIndexed);
+                rebuilt.putInt((int) (offset - segment.baseOffset)).putInt(lastIndexed);
+            }
+            expected = offset + 1;
+            tail.position(tail.position() + length);
+        }
+
+        int validSize = position + tail.position();
+        if (validSize < fileSize) {
+            System.err.println("Message log: dropped " + (fileSize - validSize) + " torn bytes from " + segment.path);
+            segment.channel.truncate(validSize);
+            segment.truncateIndex(validSize);
+        }
+        segment.indexChannel = FileChannel.open(segment.indexPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // The rebuilt entries are the newest, and all point at complete records
+        rebuilt.flip();
+        long kept = segment.indexCount() - rebuilt.remaining() / INDEX_ENTRY_BYTES;
+        segment.indexChannel.truncate(kept * INDEX_ENTRY_BYTES);
+        segment.indexChannel.position(segment.indexChannel.size());
+        while (rebuilt.hasRemaining()) {
+            segment.indexChannel.write(rebuilt);
+        }
+        segment.channel.position(validSize);
+
+        segment.size = validSize;
+        segment.lastIndexedPosition = segment.lastIndexedPosition();
+        segment.durableSize = validSize;
+        segment.endOffset = expected >= 0 ? expected : segment.baseOffset + (position == 0 ? 0 : recountFrom(segment));
+    }
+
+    // Only reached when the tail after the last index entry held no complete record
+    private long recountFrom(Segment segment) throws IOException {
+        long count = 0;
+        RecordCursor cursor = new RecordCursor(segment, 0);
+        while (cursor.next() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    private Segment openSegment(long baseOffset) throws IOException {
+        Segment segment = new Segment(dir, baseOffset);
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment.indexChannel = FileChannel.open(segment.indexPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment.endOffset = baseOffset;
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    /**
+     * Queues a message for writing and returns it with its offset and timestamp. Does
+     * not touch the disk; the caller only blocks if the writer has fallen a full queue
+     * behind. The writer never takes this lock, so a blocked appender cannot stall it.
+     * Once a write has failed the record is numbered but not queued; see {@link #getFailure}.
+     */
+    public synchronized LogRecord append(String room, long roomSeq, String sender, String recipient, String message) {
+        if (closed) {
+            throw new IllegalStateException("Message log is closed");
+        }
+        LogRecord record = new LogRecord(nextOffset, System.currentTimeMillis(), room, roomSeq, sender, recipient, message);
+        try {
+            if (failure == null) {
+                queue.put(record);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while appending to the message log", e);
+        }
+        nextOffset++;
+        if (room != null) {
+            lastRoomSeqs.put(room, roomSeq);
+        }
+        return record;
+    }
+
+    /** Highest sequence number appended for the room, or 0 if it has no messages. */
+    public synchronized long lastRoomSeq(String room) {
+        return lastRoomSeqs.getOrDefault(room, 0L);
+    }
+
+    /** Offset the next appended record will get. */
+    public synchronized long getEndOffset() {
+        return nextOffset;
+    }
+
+    /** Offset of the oldest record still on disk. */
+    public long getStartOffset() {
+        return segments.firstKey();
+    }
+
+    /** Number of fsyncs so far; appends divided by this is the group commit factor. */
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    /**
+     * Reads up to {@code maxRecords} durable records starting at {@code fromOffset}.
+     * Records still waiting for their fsync are not returned.
+     */
+    public List<LogRecord> read(long fromOffset, int maxRecords) throws IOException {
+        List<LogRecord> records = new ArrayList<>(Math.min(maxRecords, 1024));
+        Map.Entry<Long, Segment> first = segments.floorEntry(fromOffset);
+        Long start = first != null ? first.getKey() : segments.firstKey();
+        for (Segment segment : segments.tailMap(start).values()) {
+            if (records.size() >= maxRecords) {
+                break;
+            }
+            read(segment, fromOffset, maxRecords, records);
+        }
+        return records;
+    }
+
+    /**
+     * The newest records of a room with a sequence strictly between {@code afterSeq}
+     * and {@code beforeSeq}, oldest first, looking only below {@code beforeOffset}.
+     * Walks the log backwards a chunk at a time and gives up after {@code maxScan}
+     * records, so a quiet room in a busy log costs a bounded amount of work.
+     */
+    public List<LogRecord> readRoom(String room, long beforeOffset, long afterSeq, long beforeSeq,
+            int limit, int maxScan) throws IOException {
+        List<LogRecord> newestFirst = new ArrayList<>(limit);
+        long start = getStartOffset();
+        long to = Math.min(beforeOffset, segments.lastEntry().getValue().endOffset);
+        long scanned = 0;
+        boolean reachedAfterSeq = false;
+        while (newestFirst.size() < limit && !reachedAfterSeq && to > start && scanned < maxScan) {
+            long from = Math.max(start, to - ROOM_SCAN_CHUNK);
+            List<LogRecord> chunk = read(from, (int) (to - from));
+            for (int i = chunk.size() - 1; i >= 0 && newestFirst.size() < limit; i--) {
+                LogRecord record = chunk.get(i);
+                if (!room.equals(record.getRoom()) || record.getRoomSeq() >= beforeSeq) {
+                    continue;
+                }
+                if (record.getRoomSeq() <= afterSeq) {
+                    // Sequences only go down from here
+                    reachedAfterSeq = true;
+                    break;
+                }
+                newestFirst.add(record);
+            }
+            scanned += to - from;
+            to = from;
+        }
+        Collections.reverse(newestFirst);
+        return newestFirst;
+    }
+
+    private static void read(Segment segment, long fromOffset, int maxRecords, List<LogRecord> records) throws IOException {
+        RecordCursor cursor = new RecordCursor(segment, segment.positionFor(fromOffset));
+        while (records.size() < maxRecords) {
+            ByteBuffer body = cursor.next();
+            if (body == null) {
+                break;
+            }
+            if (body.getLong(1) >= fromOffset) {
+                records.add(decode(body));
+            }
+        }
+    }
+
+    private static LogRecord decode(ByteBuffer body) {
+        byte version = body.get();
+        long offset = body.getLong();
+        long timestamp = body.getLong();
+        byte flags = body.get();
+        String room = null;
+        long roomSeq = 0;
+        if ((flags & HAS_ROOM) != 0) {
+            room = readString(body);
+            roomSeq = version >= 2 ? body.getLong() : 0;
+        }
+        String sender = readString(body);
+        String recipient = (flags & HAS_RECIPIENT) != 0 ? readString(body) : null;
+        String message = readString(body);
+        return new LogRecord(offset, timestamp, room, roomSeq, sender, recipient, message);
+    }
+
+    private static String readString(ByteBuffer body) {
+        byte[] value = new byte[body.getInt()];
+        body.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private void runWriter() {
+        List<LogRecord> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            LogRecord first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                first = queue.poll();
+            }
+            if (first == null) {
+                if (closed) {
+                    return;
+                }
+                continue;
+            }
+
+            // Everything that queued up during the last fsync goes into this one
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH - 1);
+            if (failure == null) {
+                try {
+                    write(batch);
+                } catch (IOException | RuntimeException e) {
+                    fail(e, batch.size());
+                }
+            }
+            // After a failure, records appended before it was seen are dropped too
+            batch.clear();
+        }
+    }
+
+    private void write(List<LogRecord> batch) throws IOException {
+        for (LogRecord record : batch) {
+            byte[] room = bytes(record.getRoom());
+            byte[] sender = bytes(record.getSender());
+            byte[] recipient = bytes(record.getRecipient());
+            byte[] message = bytes(record.getMessage());
+            int bodyLength = 1 + 8 + 8 + 1 + 4 + sender.length + 4 + message.length
+                    + (room != null ? 4 + room.length + 8 : 0) + (recipient != null ? 4 + recipient.length : 0);
+            int frameLength = HEADER_BYTES + bodyLength;
+
+            if (active.size > 0 && active.size + frameLength > segmentBytes) {
+                sync(record.getOffset());
+                roll(record.getOffset());
+            }
+            if (active.size - active.lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+                active.addIndexEntry(record.getOffset(), active.size);
+                active.lastIndexedPosition = active.size;
+                indexOut.putInt((int) (record.getOffset() - active.baseOffset)).putInt(active.size);
+            }
+
+            ensureCapacity(frameLength);
+            int start = out.position();
+            out.putInt(bodyLength).putInt(0);
+            out.put(VERSION).putLong(record.getOffset()).putLong(record.getTimestamp());
+            out.put((byte) ((room != null ? HAS_ROOM : 0) | (recipient != null ? HAS_RECIPIENT : 0)));
+            if (room != null) {
+                out.putInt(room.length).put(room).putLong(record.getRoomSeq());
+                writtenRoomSeqs.put(record.getRoom(), record.getRoomSeq());
+            }
+            out.putInt(sender.length).put(sender);
+            if (recipient != null) {
+                out.putInt(recipient.length).put(recipient);
+            }
+            out.putInt(message.length).put(message);
+            writeCrc.reset();
+            writeCrc.update(out.array(), start + HEADER_BYTES, bodyLength);
+            out.putInt(start + 4, (int) writeCrc.getValue());
+            active.size += frameLength;
+        }
+        sync(batch.get(batch.size() - 1).getOffset() + 1);
+    }
+
+    /**
+     * Stops writing after a write failed. The records of the failed batch already have
+     * offsets, and anything written after them would leave a gap that recovery reads as
+     * the end of the log, so nothing more is written; appends still number their records
+     * so delivery goes on. The active segment is cut back to what was forced, so no
+     * half-written batch is left in front of the data.
+     */
+    private void fail(Exception cause, int lost) {
+        failure = cause;
+        System.err.println("Message log write failed, " + lost + " messages lost; nothing more will be saved: " + cause);
+        Segment segment = active;
+        out.clear();
+        indexOut.clear();
+        segment.size = segment.durableSize;
+        segment.truncateIndex(segment.durableSize);
+        segment.lastIndexedPosition = segment.lastIndexedPosition();
+        try {
+            segment.channel.truncate(segment.durableSize);
+            segment.channel.position(segment.durableSize);
+            segment.indexChannel.truncate((long) segment.indexCount() * INDEX_ENTRY_BYTES);
+            segment.indexChannel.position(segment.indexChannel.size());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not cut " + segment.path + " back to " + segment.durableSize
+                    + " bytes; recovery checks the tail at the next start: " + e);
+        }
+    }
+
+    /** The write failure that stopped the log saving messages, or null while it is working. */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    // Writes the pending bytes and index entries, forces the data once and publishes it to readers
+    private void sync(long endOffset) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            active.channel.write(out);
+        }
+        out.clear();
+        indexOut.flip();
+        while (indexOut.hasRemaining()) {
+            active.indexChannel.write(indexOut);
+        }
+        indexOut.clear();
+
+        // The index is not forced; recovery rebuilds the newest segment's from its data
+        active.channel.force(false);
+        syncCount.incrementAndGet();
+        active.durableSize = active.size;
+        active.endOffset = endOffset;
+    }
+
+    private void roll(long baseOffset) throws IOException {
+        // Only the newest segment's index is rebuilt at startup, so a sealed one is forced
+        active.indexChannel.force(false);
+        active.channel.close();
+        active.indexChannel.close();
+        active.sealed = true;
+        // The checkpoint goes first so a segment never exists without one
+        writeCheckpoint(baseOffset);
+        active = openSegment(baseOffset);
+    }
+
+    private void ensureCapacity(int frameLength) {
+        if (out.remaining() < frameLength) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + frameLength));
+            out.flip();
+            larger.put(out);
+            out = larger;
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes out everything already appended and closes the files.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        try {
+            writer.join();
+            active.channel.close();
+            active.indexChannel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Error closing message log: " + e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Sends a client's chat messages, retrying through connection failures.
+ *
+ * Each message gets a client message id before its first attempt and keeps it for
+ * every retry, and the server drops an id it has already accepted
+ * ({@link DedupWindow}). So a call whose reply was lost, which may or may not have
+ * been delivered, can be repeated safely. Errors reported by the server itself,
+ * such as an unknown room, are not retried.
+ *
+ * Ids start at a random point, so a restarted client does not reuse the ids the
+ * server still remembers from its previous run.
+ */
+public class MessageSender {
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long FIRST_RETRY_MILLIS = 100;
+
+    private final Supplier<ChatService> service;
+    private final AtomicLong nextId = new AtomicLong(new SecureRandom().nextLong() >>> 1);
+    private ExecutorService background;
+
+    /** Sends through whatever {@code service} returns at the time of each attempt. */
+    public MessageSender(Supplier<ChatService> service) {
+        this.service = service;
+    }
+
+    /** Sends the message, retrying on connection failures, and throws the last failure. */
+    public void send(ChatMessage message) throws RemoteException {
+        ChatMessage identified = message.withClientId(nextClientId());
+        long delay = FIRST_RETRY_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                service.get().sendMessage(identified);
+                return;
+            } catch (ServerException e) {
+                throw e;
+            } catch (RemoteException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while retrying a send");
+            }
+            delay *= 2;
+        }
+    }
+
+    /**
+     * Sends on a background thread, one message at a time so they arrive in order,
+     * and passes a final failure to {@code onFailure} on that thread.
+     */
+    public synchronized void sendLater(ChatMessage message, Consumer<RemoteException> onFailure) {
+        if (background == null) {
+            background = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "message-sender");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        background.execute(() -> {
+            try {
+                send(message);
+            } catch (RemoteException e) {
+                onFailure.accept(e);
+            }
+        });
+    }
+
+    private long nextClientId() {
+        long id = nextId.getAndIncrement() & Long.MAX_VALUE;
+        // 0 means no id
+        return id != 0 ? id : nextId.getAndIncrement() & Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side of {@link NioChatServer}: a {@link ChatService} whose calls travel as
+ * {@link WireProtocol} frames over one socket.
+ *
+ * A reader thread hands responses to the waiting callers and callbacks to a single
+ * callback thread, so callbacks run in order and may call the service themselves.
+ * If the connection drops, waiting calls fail with a {@link RemoteException} and the
+ * next call opens a new connection; the lease renewal then registers again, as it
+ * does when an RMI client loses its session. A call with no answer after
+ * {@link #CALL_TIMEOUT_SECONDS} fails the same way rather than waiting for ever. The callback is sent as a session id
+ * made once per client, so the server knows the new connection for the client that
+ * held the name and lets it take the name back.
+ */
+public class NioChatClient implements InvocationHandler {
+    static final int CALL_TIMEOUT_SECONDS = 30;
+
+    private final InetSocketAddress address;
+    private final Map<String, Method> callbackMethods = new HashMap<>();
+    private final Map<Integer, CompletableFuture<WireProtocol.Frame>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCallId = new AtomicInteger();
+    private final WireProtocol.CallbackRef session = new WireProtocol.CallbackRef(new SecureRandom().nextLong());
+    private final ExecutorService callbackThread = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "nio-callbacks");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile ClientCallback callback;
+    private SocketChannel channel; // guarded by this
+
+    private NioChatClient(InetSocketAddress address) {
+        this.address = address;
+        for (Method method : ClientCallback.class.getMethods()) {
+            callbackMethods.put(WireProtocol.methodKey(method.getName(), method.getParameterCount()), method);
+        }
+    }
+
+    public static ChatService connect(String host, int port) throws RemoteException {
+        NioChatClient client = new NioChatClient(new InetSocketAddress(host, port));
+        client.channel();
+        return (ChatService) Proxy.newProxyInstance(ChatService.class.getClassLoader(),
+                new Class<?>[] { ChatService.class }, client);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return switch (method.getName()) {
+                case "equals" -> proxy == args[0];
+                case "hashCode" -> System.identityHashCode(proxy);
+                default -> "NioChatClient[" + address + "]";
+            };
+        }
+        // Callbacks may arrive before the call returns, so install the new one up front
+        ClientCallback previous = callback;
+        Object[] sent = args;
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] instanceof ClientCallback cb) {
+                    callback = cb;
+                    sent = sent == args ? args.clone() : sent;
+                    sent[i] = session;
+                }
+            }
+        }
+
+        int id = nextCallId.incrementAndGet();
+        CompletableFuture<WireProtocol.Frame> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        boolean failed = true;
+        try {
+            write(WireProtocol.call(WireProtocol.CALL, id, method.getName(), sent));
+            WireProtocol.Frame frame = reply.get(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (frame.kind == WireProtocol.ERROR) {
+                throw new ServerException((String) frame.value);
+            }
+            failed = false;
+            return frame.value;
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (TimeoutException e) {
+            throw new RemoteException("No answer from " + address + " to " + method.getName()
+                    + " within " + CALL_TIMEOUT_SECONDS + " seconds");
+        } finally {
+            if (failed) {
+                callback = previous;
+            }
+            pending.remove(id);
+        }
+    }
+
+    private synchronized SocketChannel channel() throws RemoteException {
+        if (channel == null || !channel.isOpen()) {
+            try {
+                channel = SocketChannel.open(address);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                throw new RemoteException("Cannot connect to " + address, e);
+            }
+            SocketChannel opened = channel;
+            Thread reader = new Thread(() -> readLoop(opened), "nio-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+        return channel;
+    }
+
+    private synchronized void write(ByteBuffer frame) throws RemoteException {
+        SocketChannel current = channel();
+        try {
+            while (frame.hasRemaining()) {
+                current.write(frame);
+            }
+        } catch (IOException e) {
+            disconnected(current, e);
+            throw new RemoteException("Connection to " + address + " lost", e);
+        }
+    }
+
+    private void readLoop(SocketChannel source) {
+        ByteBuffer header = ByteBuffer.allocate(WireProtocol.LENGTH_BYTES);
+        try {
+            while (true) {
+                header.clear();
+                readFully(source, header);
+                int length = header.getInt(0);
+                if (length <= 0 || length > WireProtocol.MAX_FRAME_BYTES) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(source, body);
+                body.flip();
+                WireProtocol.Frame frame = WireProtocol.decode(body);
+                if (frame.kind == WireProtocol.CALLBACK) {
+                    callbackThread.execute(() -> dispatchCallback(frame));
+                } else {
+                    CompletableFuture<WireProtocol.Frame> reply = pending.get(frame.id);
+                    if (reply != null) {
+                        reply.complete(frame);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            disconnected(source, e);
+        }
+    }
+
+    private static void readFully(SocketChannel source, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+        }
+    }
+
+    private void disconnected(SocketChannel lost, Exception cause) {
+        synchronized (this) {
+            if (lost != channel) {
+                return;
+            }
+            channel = null;
+        }
+        try {
+            lost.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        RemoteException failure = new RemoteException("Connection to " + address + " lost", cause);
+        for (CompletableFuture<WireProtocol.Frame> reply : pending.values()) {
+            reply.completeExceptionally(failure);
+        }
+    }
+
+    private void dispatchCallback(WireProtocol.Frame frame) {
+        ClientCallback target = callback;
+        Method method = callbackMethods.get(WireProtocol.methodKey(frame.method, frame.args.length));
+        if (target == null || method == null) {
+            return;
+        }
+        try {
+            method.invoke(target, frame.args);
+        } catch (InvocationTargetException e) {
+            System.err.println("Error in callback " + frame.method + ": " + e.getCause());
+        } catch (IllegalAccessException | IllegalArgumentException e) {
+            System.err.println("Bad callback " + frame.method + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves {@link ChatService} over plain sockets, next to the RMI registry.
+ *
+ * Each client keeps one connection open for both directions: its calls go up as
+ * {@link WireProtocol} frames and come back as responses, and its callbacks come
+ * down the same socket as one-way frames. A single selector thread does all socket
+ * I/O; the service methods themselves run on a small worker pool, since they may
+ * block on locks or the message log. A connection's calls run one at a time in the
+ * order they arrived, so a client's sends keep their order as they do over RMI.
+ *
+ * A broadcast message is encoded once and its bytes are shared by the frames
+ * queued for every recipient; each connection only holds its own small header and
+ * a view of the shared bytes, and writes them out with one gathering write.
+ *
+ * Callback frames are queued per connection. Once a connection has too much unsent
+ * data the delivering thread waits for it to drain and, failing that, gets a
+ * {@link RemoteException} just as a stuck RMI call would, so the mailbox and lease
+ * sweeper deal with the client exactly as they do for RMI clients.
+ */
+public class NioChatServer implements Runnable {
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_BACKLOG_BYTES = 4 * 1024 * 1024;
+    private static final long BACKLOG_WAIT_MILLIS = 5_000;
+    private static final int GATHER_BUFFERS = 64;
+
+    private final ChatService service;
+    private final Map<String, Method> methods = new HashMap<>();
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Queue<Connection> flushQueue = new ConcurrentLinkedQueue<>();
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    public NioChatServer(ChatService service, int port, int workerThreads) throws IOException {
+        this.service = service;
+        for (Method method : ChatService.class.getMethods()) {
+            methods.put(WireProtocol.methodKey(method.getName(), method.getParameterCount()), method);
+        }
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "nio-worker-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.selectorThread = new Thread(this, "nio-selector");
+        selectorThread.setDaemon(true);
+    }
+
+    public void start() {
+        selectorThread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        workers.shutdown();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                Connection flushed;
+                while ((flushed = flushQueue.poll()) != null) {
+                    flush(flushed);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("NIO selector error: " + e.getMessage());
+            }
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection) {
+                    connection.close();
+                }
+            }
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing NIO server: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void read(Connection connection) {
+        try {
+            int n = connection.channel.read(connection.readBuffer);
+            if (n < 0) {
+                connection.close();
+                return;
+            }
+            ByteBuffer buffer = connection.readBuffer;
+            buffer.flip();
+            while (buffer.remaining() >= WireProtocol.LENGTH_BYTES) {
+                int length = buffer.getInt(buffer.position());
+                if (length <= 0 || length > WireProtocol.MAX_FRAME_BYTES) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (buffer.remaining() < WireProtocol.LENGTH_BYTES + length) {
+                    break;
+                }
+                int end = buffer.position() + WireProtocol.LENGTH_BYTES + length;
+                ByteBuffer body = buffer.slice(buffer.position() + WireProtocol.LENGTH_BYTES, length);
+                buffer.position(end);
+                WireProtocol.Frame frame = WireProtocol.decode(body);
+                if (frame.kind != WireProtocol.CALL) {
+                    throw new IOException("Unexpected frame kind " + frame.kind);
+                }
+                connection.queueCall(frame);
+            }
+            buffer.compact();
+            // Grow the buffer for a frame that does not fit yet
+            if (buffer.position() >= WireProtocol.LENGTH_BYTES) {
+                int needed = WireProtocol.LENGTH_BYTES + buffer.getInt(0);
+                if (needed > buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(needed);
+                    buffer.flip();
+                    larger.put(buffer);
+                    connection.readBuffer = larger;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Dropping NIO connection " + connection + ": " + e.getMessage());
+            connection.close();
+        }
+    }
+
+    private void flush(Connection connection) {
+        try {
+            connection.flush();
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    private void invoke(Connection connection, WireProtocol.Frame frame) {
+        Method method = methods.get(WireProtocol.methodKey(frame.method, frame.args.length));
+        ByteBuffer reply;
+        if (method == null) {
+            reply = WireProtocol.error(frame.id, "Unknown method " + frame.method);
+        } else {
+            Object[] args = frame.args;
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] instanceof WireProtocol.CallbackRef ref) {
+                    args[i] = connection.callbackFor(ref.session);
+                }
+            }
+            try {
+                reply = WireProtocol.response(frame.id, method.invoke(service, args));
+            } catch (InvocationTargetException e) {
+                // Every call gets an answer, even for an exception without a message
+                Throwable cause = e.getCause();
+                reply = WireProtocol.error(frame.id, cause.getMessage() != null ? cause.getMessage() : cause.toString());
+            } catch (IllegalAccessException | IllegalArgumentException e) {
+                reply = WireProtocol.error(frame.id, "Bad call to " + frame.method + ": " + e.getMessage());
+            }
+        }
+        try {
+            connection.send(reply);
+        } catch (RemoteException e) {
+            // The client is gone; nobody is waiting for the answer
+        }
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private final ArrayDeque<WireProtocol.Frame> calls = new ArrayDeque<>(); // guarded by calls
+        private boolean calling; // guarded by calls
+        private final ByteBuffer[] gather = new ByteBuffer[GATHER_BUFFERS];
+        private SelectionKey key;
+        private ConnectionCallback callback;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private long backlogBytes;
+        private boolean flushQueued;
+        private boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized ClientCallback callbackFor(long session) {
+            if (callback == null || callback.session != session) {
+                callback = new ConnectionCallback(this, session);
+            }
+            return callback;
+        }
+
+        // At most one of the connection's calls is on the pool at a time
+        void queueCall(WireProtocol.Frame frame) {
+            synchronized (calls) {
+                calls.add(frame);
+                if (calling) {
+                    return;
+                }
+                calling = true;
+            }
+            workers.execute(this::runNextCall);
+        }
+
+        // Goes to the back of the pool's queue between calls, so a busy client cannot hold a worker
+        private void runNextCall() {
+            WireProtocol.Frame frame;
+            synchronized (calls) {
+                frame = calls.poll();
+            }
+            boolean more;
+            try {
+                invoke(this, frame);
+            } finally {
+                synchronized (calls) {
+                    more = !calls.isEmpty();
+                    calling = more;
+                }
+            }
+            if (more) {
+                workers.execute(this::runNextCall);
+            }
+        }
+
+        // A frame may come in several buffers, e.g. a header followed by shared message bytes
+        synchronized void send(ByteBuffer... frame) throws RemoteException {
+            if (closed) {
+                throw new RemoteException("Connection closed");
+            }
+            for (ByteBuffer buffer : frame) {
+                outbound.add(buffer);
+                backlogBytes += buffer.remaining();
+            }
+            if (!flushQueued) {
+                flushQueued = true;
+                flushQueue.add(this);
+                selector.wakeup();
+            }
+        }
+
+        // Blocks a callback while the client is not keeping up with what it was already sent
+        synchronized void awaitCapacity() throws RemoteException {
+            long deadline = System.currentTimeMillis() + BACKLOG_WAIT_MILLIS;
+            while (backlogBytes > MAX_BACKLOG_BYTES && !closed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new RemoteException("Client is not reading; " + backlogBytes + " bytes unsent");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("Interrupted while waiting for client");
+                }
+            }
+        }
+
+        // Selector thread only
+        synchronized void flush() throws IOException {
+            flushQueued = false;
+            if (closed) {
+                return;
+            }
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                long requested = 0;
+                for (ByteBuffer buffer : outbound) {
+                    gather[count++] = buffer;
+                    requested += buffer.remaining();
+                    if (count == gather.length) {
+                        break;
+                    }
+                }
+                long written = channel.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+                backlogBytes -= written;
+                while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                    outbound.poll();
+                }
+                if (written < requested) {
+                    break; // socket buffer is full; wait for OP_WRITE
+                }
+            }
+            key.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            notifyAll();
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outbound.clear();
+            backlogBytes = 0;
+            notifyAll();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "closed";
+            }
+        }
+    }
+
+    /**
+     * What the service sees as the client's callback: each call becomes a one-way frame.
+     * Equal to any other for the same client session, whatever the connection, so the
+     * registry lets a client that reconnected reclaim its name, as RMI stubs of one
+     * exported callback are equal.
+     */
+    private static class ConnectionCallback implements ClientCallback {
+        private final Connection connection;
+        private final long session;
+
+        ConnectionCallback(Connection connection, long session) {
+            this.connection = connection;
+            this.session = session;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ConnectionCallback callback && callback.session == session;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(session);
+        }
+
+        @Override
+        public void receiveMessage(String sender, String message, boolean isPrivate) throws RemoteException {
+            send("receiveMessage", sender, message, isPrivate);
+        }
+
+        @Override
+        public void receiveMessages(List<ChatMessage> messages) throws RemoteException {
+            connection.awaitCapacity();
+            connection.send(WireProtocol.messagesCallback(messages));
+        }
+
+        @Override
+        public void updateClientList(List<String> clients) throws RemoteException {
+            send("updateClientList", clients);
+        }
+
+        @Override
+        public void updatePresence(PresenceUpdate update) throws RemoteException {
+            send("updatePresence", update);
+        }
+
+        @Override
+        public void messagesDelivered(List<Long> ids) throws RemoteException {
+            send("messagesDelivered", ids);
+        }
+
+        private void send(String method, Object... args) throws RemoteException {
+            connection.awaitCapacity();
+            connection.send(WireProtocol.call(WireProtocol.CALLBACK, 0, method, args));
+        }
+    }
+}
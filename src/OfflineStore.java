@@ -0,0 +1,200 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Private messages waiting for users who are not online, one file per user.
+ *
+ * A user gets a mailbox file the first time they register, so messages can only be
+ * left for names the server has seen before. Each waiting message is a varint length
+ * followed by the message's compact form ({@link ChatMessage#writeCompact}). In
+ * memory the store keeps only how many messages wait for each user.
+ *
+ * Both limits are enforced here: a mailbox holds at most {@code maxMessages}, after
+ * which sends to it are refused so the sender knows, and messages older than the
+ * retention are dropped whenever a mailbox is read or compacted. Appends are not
+ * forced to disk; every private message also goes to the message log, which is.
+ *
+ * Not thread-safe on its own; callers lock the store around each call.
+ */
+public class OfflineStore {
+    private static final String SUFFIX = ".box";
+
+    private final Path dir;
+    private final int maxMessages;
+    private final long retentionMillis;
+    private final Map<String, Integer> waiting = new HashMap<>();
+
+    private OfflineStore(Path dir, int maxMessages, int retentionDays) {
+        this.dir = dir;
+        this.maxMessages = maxMessages;
+        this.retentionMillis = TimeUnit.DAYS.toMillis(retentionDays);
+    }
+
+    /** Opens the store in {@code dir}, creating it if needed, and counts what is waiting. */
+    public static OfflineStore open(Path dir, int maxMessages, int retentionDays) throws IOException {
+        Files.createDirectories(dir);
+        OfflineStore store = new OfflineStore(dir, maxMessages, retentionDays);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(SUFFIX)) {
+                    String user = new String(HexFormat.of().parseHex(
+                            fileName.substring(0, fileName.length() - SUFFIX.length())), StandardCharsets.UTF_8);
+                    store.waiting.put(user, countRecords(file));
+                }
+            }
+        }
+        return store;
+    }
+
+    /** Whether the user has registered before, so messages can be left for them. */
+    public boolean isKnown(String user) {
+        return waiting.containsKey(user);
+    }
+
+    /** Whether the user's mailbox has room for another message, after dropping expired ones. */
+    public boolean hasRoom(String user) throws IOException {
+        if (waiting.getOrDefault(user, 0) < maxMessages) {
+            return true;
+        }
+        // Expired messages still count until the file is rewritten without them
+        List<ChatMessage> kept = readLive(user);
+        Path file = file(user);
+        Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(rewritten, encode(kept));
+        Files.move(rewritten, file, StandardCopyOption.REPLACE_EXISTING);
+        waiting.put(user, kept.size());
+        return kept.size() < maxMessages;
+    }
+
+    /** Leaves a private message for its recipient, who must be known and have room. */
+    public void store(ChatMessage message) throws IOException {
+        String user = message.getRecipient();
+        Files.write(file(user), encode(List.of(message)), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        waiting.merge(user, 1, Integer::sum);
+    }
+
+    /**
+     * Returns everything waiting for the user, oldest first, and makes them known if
+     * they were not. The messages stay stored until {@link #remove} is told they arrived.
+     */
+    public List<ChatMessage> read(String user) throws IOException {
+        if (!waiting.containsKey(user)) {
+            // An empty file, rather than none, marks the user as known after a restart
+            Files.write(file(user), new byte[0]);
+            waiting.put(user, 0);
+        }
+        return waiting.get(user) > 0 ? readLive(user) : List.of();
+    }
+
+    /** Drops the user's messages up to and including {@code throughId}, once they were delivered. */
+    public void remove(String user, long throughId) throws IOException {
+        List<ChatMessage> kept = new ArrayList<>();
+        for (ChatMessage message : readLive(user)) {
+            if (message.getId() > throughId) {
+                kept.add(message);
+            }
+        }
+        Path file = file(user);
+        Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(rewritten, encode(kept));
+        Files.move(rewritten, file, StandardCopyOption.REPLACE_EXISTING);
+        waiting.put(user, kept.size());
+    }
+
+    public int getWaiting(String user) {
+        return waiting.getOrDefault(user, 0);
+    }
+
+    private List<ChatMessage> readLive(String user) throws IOException {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        List<ChatMessage> messages = new ArrayList<>();
+        try (DataInputStream in = reader(file(user))) {
+            while (true) {
+                byte[] record = readRecord(in);
+                if (record == null) {
+                    break;
+                }
+                ChatMessage message = new ChatMessage();
+                message.readCompact(new DataInputStream(new ByteArrayInputStream(record)), null);
+                if (message.getTimestamp() >= cutoff) {
+                    messages.add(message);
+                }
+            }
+        }
+        return messages;
+    }
+
+    // Also cuts off a record left incomplete by a crash, so later appends start clean
+    private static int countRecords(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+        DataInputStream in = new DataInputStream(buffer);
+        int count = 0;
+        int end = 0;
+        while (readRecord(in) != null) {
+            count++;
+            end = bytes.length - buffer.available();
+        }
+        if (end < bytes.length) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        return count;
+    }
+
+    // Null at the end, including after a record cut short by a crash
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            long length = Varints.readUnsigned(in);
+            byte[] record = new byte[(int) Math.min(length, WireProtocol.MAX_FRAME_BYTES)];
+            in.readFully(record);
+            return record;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(List<ChatMessage> messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        for (ChatMessage message : messages) {
+            record.reset();
+            message.writeCompact(new DataOutputStream(record), null);
+            Varints.writeUnsigned(out, record.size());
+            record.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream reader(Path file) throws IOException {
+        InputStream in = Files.exists(file) ? Files.newInputStream(file) : InputStream.nullInputStream();
+        return new DataInputStream(new BufferedInputStream(in));
+    }
+
+    // Hex keeps any user name a valid file name on every file system
+    private Path file(String user) {
+        return dir.resolve(HexFormat.of().formatHex(user.getBytes(StandardCharsets.UTF_8)) + SUFFIX);
+    }
+}
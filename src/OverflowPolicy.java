@@ -0,0 +1,15 @@
+/**
+ * What a client's outbound mailbox does once it is full.
+ */
+public enum OverflowPolicy {
+    /** Discard the oldest queued message to make room for the new one. */
+    DROP_OLDEST,
+    /** Merge consecutive lines from the same sender; drop the oldest only when that is not possible. */
+    COALESCE,
+    /** Drop the oldest like DROP_OLDEST, but disconnect clients that stay above the high-water mark too long. */
+    DISCONNECT;
+
+    public static OverflowPolicy fromString(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versioned record of who is online.
+ *
+ * Every join, leave and rename bumps the version and is kept in a bounded change
+ * log, so a client at any recent version can be brought up to date with a single
+ * merged delta. Clients older than the log get a full snapshot instead.
+ */
+public class PresenceTracker {
+    private static final int MAX_LOGGED_CHANGES = 1024;
+
+    private static class Change {
+        final long version;
+        final String oldName; // null for a join
+        final String newName; // null for a leave
+
+        Change(long version, String oldName, String newName) {
+            this.version = version;
+            this.oldName = oldName;
+            this.newName = newName;
+        }
+    }
+
+    private final Set<String> members = new LinkedHashSet<>();
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private long version;
+
+    public synchronized void joined(String name) {
+        members.add(name);
+        record(null, name);
+    }
+
+    public synchronized void left(String name) {
+        if (members.remove(name)) {
+            record(name, null);
+        }
+    }
+
+    public synchronized void renamed(String oldName, String newName) {
+        if (members.remove(oldName)) {
+            members.add(newName);
+            record(oldName, newName);
+        }
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized List<String> getMembers() {
+        return new ArrayList<>(members);
+    }
+
+    /**
+     * Returns everything that changed after {@code sinceVersion} as one delta, or a
+     * snapshot when those changes are no longer in the log.
+     */
+    public synchronized PresenceUpdate since(long sinceVersion) {
+        Change oldest = changes.peekFirst();
+        if (sinceVersion <= 0 || sinceVersion > version || oldest == null || oldest.version > sinceVersion + 1) {
+            return PresenceUpdate.snapshot(version, new ArrayList<>(members));
+        }
+
+        // Current name -> name the client knows it by (null if it joined in this window)
+        Map<String, String> current = new LinkedHashMap<>();
+        Set<String> left = new LinkedHashSet<>();
+
+        for (Change change : changes) {
+            if (change.version <= sinceVersion) {
+                continue;
+            }
+            if (change.oldName == null) {
+                current.put(change.newName, null);
+            } else if (current.containsKey(change.oldName)) {
+                String original = current.remove(change.oldName);
+                if (change.newName != null) {
+                    current.put(change.newName, original);
+                } else if (original != null) {
+                    left.add(original);
+                }
+            } else if (change.newName != null) {
+                current.put(change.newName, change.oldName);
+            } else {
+                left.add(change.oldName);
+            }
+        }
+
+        List<String> joined = new ArrayList<>();
+        Map<String, String> renamed = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            if (entry.getValue() == null) {
+                joined.add(entry.getKey());
+            } else if (!entry.getValue().equals(entry.getKey())) {
+                renamed.put(entry.getValue(), entry.getKey());
+            }
+        }
+        return new PresenceUpdate(sinceVersion, version, false, joined, new ArrayList<>(left), renamed);
+    }
+
+    private void record(String oldName, String newName) {
+        version++;
+        changes.addLast(new Change(version, oldName, newName));
+        while (changes.size() > MAX_LOGGED_CHANGES) {
+            changes.pollFirst();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A change to the online user list between two presence versions.
+ *
+ * A delta lists who left, who was renamed and who joined since {@code baseVersion};
+ * clients apply it in that order. A snapshot replaces the whole list and is only
+ * sent when the client's version is too old to bring up to date with a delta.
+ */
+public class PresenceUpdate implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long baseVersion;
+    private final long version;
+    private final boolean snapshot;
+    private final List<String> joined;
+    private final List<String> left;
+    private final Map<String, String> renamed;
+
+    public PresenceUpdate(long baseVersion, long version, boolean snapshot,
+                          List<String> joined, List<String> left, Map<String, String> renamed) {
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.snapshot = snapshot;
+        this.joined = joined;
+        this.left = left;
+        this.renamed = renamed;
+    }
+
+    public static PresenceUpdate snapshot(long version, List<String> members) {
+        return new PresenceUpdate(0, version, true, members, List.of(), Map.of());
+    }
+
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /** All online users for a snapshot, newly joined users for a delta. */
+    public List<String> getJoined() {
+        return joined;
+    }
+
+    public List<String> getLeft() {
+        return left;
+    }
+
+    /** Old name to new name. */
+    public Map<String, String> getRenamed() {
+        return renamed;
+    }
+}
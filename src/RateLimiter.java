@@ -0,0 +1,89 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for everything a client can make the server fan out: a token
+ * bucket per sender, so one client in a paste loop is held to its own rate, and one
+ * for the whole server, so many clients together cannot exceed what it can deliver.
+ *
+ * Buckets are keyed by name and follow a sender through a rename, so a new name is
+ * not a new burst.
+ *
+ * A rejected call throws before anything is logged or queued. The exceptions are
+ * created once and shared, so turning away a flood costs no stack walks. A rate of
+ * 0 switches that limit off.
+ */
+public class RateLimiter {
+    private static final RemoteException SENDER_LIMITED =
+            new RemoteException("You are sending too fast. Please wait a moment.");
+    private static final RemoteException SERVER_LIMITED =
+            new RemoteException("The server is busy. Please try again shortly.");
+
+    private final ConcurrentHashMap<String, TokenBucket> senders = new ConcurrentHashMap<>();
+    private final double senderRate;
+    private final int senderBurst;
+    private final TokenBucket server;
+
+    private final AtomicLong senderRejections = new AtomicLong();
+    private final AtomicLong serverRejections = new AtomicLong();
+
+    public RateLimiter(double senderRate, int senderBurst, double serverRate, int serverBurst) {
+        this.senderRate = senderRate;
+        this.senderBurst = senderBurst;
+        this.server = serverRate > 0 ? new TokenBucket(serverRate, serverBurst) : null;
+    }
+
+    /** Takes a token for the sender and one for the server, or throws if either is out. */
+    public void admit(String sender) throws RemoteException {
+        // The sender's own bucket first, so a flooder does not use up the server's tokens
+        if (senderRate > 0 && !bucket(String.valueOf(sender)).tryAcquire()) {
+            senderRejections.incrementAndGet();
+            throw SENDER_LIMITED;
+        }
+        if (server != null && !server.tryAcquire()) {
+            serverRejections.incrementAndGet();
+            throw SERVER_LIMITED;
+        }
+    }
+
+    /**
+     * Drops the sender's bucket once it has refilled. A bucket still in debt is kept,
+     * so leaving and coming back does not reset a flooder's limit.
+     */
+    public void forget(String sender) {
+        senders.computeIfPresent(sender, (name, bucket) -> bucket.isFull() ? null : bucket);
+    }
+
+    /**
+     * Moves the sender's bucket to its new name. If the name has a bucket left in
+     * debt by an earlier holder, the emptier of the two is kept.
+     */
+    public void renamed(String oldName, String newName) {
+        TokenBucket bucket = senders.remove(oldName);
+        if (bucket != null) {
+            senders.merge(newName, bucket, TokenBucket::emptier);
+        }
+    }
+
+    public long getSenderRejections() {
+        return senderRejections.get();
+    }
+
+    public long getServerRejections() {
+        return serverRejections.get();
+    }
+
+    public String summary() {
+        return "rate limits: " + senderRejections.get() + " sender rejections, "
+                + serverRejections.get() + " server rejections, " + senders.size() + " senders tracked";
+    }
+
+    private TokenBucket bucket(String sender) {
+        TokenBucket bucket = senders.get(sender);
+        if (bucket == null) {
+            bucket = senders.computeIfAbsent(sender, name -> new TokenBucket(senderRate, senderBurst));
+        }
+        return bucket;
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+
+/**
+ * Server tuning options, read from {@code --name=value} command line arguments.
+ */
+public class ServerConfig {
+    private boolean virtualThreads = false;
+    private int dispatcherThreads = Runtime.getRuntime().availableProcessors() * 2;
+    private int mailboxCapacity = 256;
+    private int mailboxHighWater = 192;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private int disconnectAfterSeconds = 30;
+    private int batchWindowMillis = 5;
+    private int batchSize = 64;
+    private int nameHistoryLimit = 10_000;
+    private int nameReservationMinutes = 60;
+    private int leaseSeconds = 30;
+    private int sweepIntervalSeconds = 5;
+    private String logDir = "chat-log";
+    private int logSegmentMegabytes = 64;
+    private int historyCacheSize = 500;
+    private int nioPort = ChatTransport.NIO_PORT;
+    private String rmiSockets = "plain";
+    private boolean tcpNoDelay = true;
+    private boolean tcpKeepAlive = true;
+    private int socketBufferKilobytes = 0;
+    private int compressThreshold = 1024;
+    private int statsIntervalSeconds = 60;
+    private String tlsKeyStore;
+    private String tlsPassword;
+    private int tlsSessionCacheSize = 1000;
+    private int tlsSessionMinutes = 60;
+    private TlsSocketFactory tlsSockets;
+    private int dedupWindowSize = 10_000;
+    private int dedupWindowSeconds = 300;
+    private double senderRate = 5;
+    private int senderBurst = 20;
+    private double serverRate = 2000;
+    private int serverBurst = 4000;
+    private String offlineDir = "chat-offline";
+    private int offlineMaxMessages = 500;
+    private int offlineRetentionDays = 30;
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            switch (key) {
+                case "executor" -> config.virtualThreads = parseExecutor(value);
+                case "dispatcher-threads" -> config.dispatcherThreads = Integer.parseInt(value);
+                case "mailbox-capacity" -> config.mailboxCapacity = Integer.parseInt(value);
+                case "mailbox-high-water" -> config.mailboxHighWater = Integer.parseInt(value);
+                case "overflow-policy" -> config.overflowPolicy = OverflowPolicy.fromString(value);
+                case "disconnect-after" -> config.disconnectAfterSeconds = Integer.parseInt(value);
+                case "batch-window-ms" -> config.batchWindowMillis = Integer.parseInt(value);
+                case "batch-size" -> config.batchSize = Integer.parseInt(value);
+                case "name-history" -> config.nameHistoryLimit = Integer.parseInt(value);
+                case "name-reservation-minutes" -> config.nameReservationMinutes = Integer.parseInt(value);
+                case "lease-seconds" -> config.leaseSeconds = Integer.parseInt(value);
+                case "sweep-interval-seconds" -> config.sweepIntervalSeconds = Integer.parseInt(value);
+                case "log-dir" -> config.logDir = value;
+                case "log-segment-mb" -> config.logSegmentMegabytes = parseSegmentMegabytes(value);
+                case "history-cache" -> config.historyCacheSize = Integer.parseInt(value);
+                case "nio-port" -> config.nioPort = Integer.parseInt(value);
+                case "rmi-sockets" -> config.rmiSockets = parseSockets(value);
+                case "tcp-nodelay" -> config.tcpNoDelay = Boolean.parseBoolean(value);
+                case "tcp-keepalive" -> config.tcpKeepAlive = Boolean.parseBoolean(value);
+                case "socket-buffer-kb" -> config.socketBufferKilobytes = Integer.parseInt(value);
+                case "compress-threshold" -> config.compressThreshold = Integer.parseInt(value);
+                case "stats-interval-seconds" -> config.statsIntervalSeconds = Integer.parseInt(value);
+                case "tls-keystore" -> config.tlsKeyStore = value;
+                case "tls-password" -> config.tlsPassword = value;
+                case "tls-session-cache" -> config.tlsSessionCacheSize = Integer.parseInt(value);
+                case "tls-session-minutes" -> config.tlsSessionMinutes = Integer.parseInt(value);
+                case "dedup-window-size" -> config.dedupWindowSize = Integer.parseInt(value);
+                case "dedup-window-seconds" -> config.dedupWindowSeconds = Integer.parseInt(value);
+                case "sender-rate" -> config.senderRate = Double.parseDouble(value);
+                case "sender-burst" -> config.senderBurst = Integer.parseInt(value);
+                case "server-rate" -> config.serverRate = Double.parseDouble(value);
+                case "server-burst" -> config.serverBurst = Integer.parseInt(value);
+                case "offline-dir" -> config.offlineDir = value;
+                case "offline-max-messages" -> config.offlineMaxMessages = Integer.parseInt(value);
+                case "offline-retention-days" -> config.offlineRetentionDays = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+
+        if (config.mailboxHighWater > config.mailboxCapacity) {
+            config.mailboxHighWater = config.mailboxCapacity;
+        }
+        if (config.rmiSockets.equals("tls")) {
+            config.tlsSockets = loadTls(config);
+        }
+        return config;
+    }
+
+    private static boolean parseExecutor(String value) {
+        return switch (value) {
+            case "virtual" -> true;
+            case "platform" -> false;
+            default -> throw new IllegalArgumentException("Executor must be 'virtual' or 'platform': " + value);
+        };
+    }
+
+    // A segment is read through one memory map, which an int has to be able to address
+    private static int parseSegmentMegabytes(String value) {
+        int megabytes = Integer.parseInt(value);
+        int max = Integer.MAX_VALUE / (1024 * 1024);
+        if (megabytes < 1 || megabytes > max) {
+            throw new IllegalArgumentException("Log segments must be 1 to " + max + " MB: " + value);
+        }
+        return megabytes;
+    }
+
+    private static String parseSockets(String value) {
+        return switch (value) {
+            case "tuned", "plain", "tls" -> value;
+            default -> throw new IllegalArgumentException("RMI sockets must be 'tuned', 'plain' or 'tls': " + value);
+        };
+    }
+
+    private static TlsSocketFactory loadTls(ServerConfig config) {
+        if (config.tlsKeyStore == null || config.tlsPassword == null) {
+            throw new IllegalArgumentException("TLS needs --tls-keystore and --tls-password");
+        }
+        try {
+            return TlsSocketFactory.forServer(Paths.get(config.tlsKeyStore), config.tlsPassword.toCharArray(),
+                    config.tlsSessionCacheSize, config.tlsSessionMinutes * 60);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalArgumentException("Cannot load TLS key store " + config.tlsKeyStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** Whether deliveries run on virtual threads instead of the fixed platform pool. */
+    public boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getDispatcherThreads() {
+        return dispatcherThreads;
+    }
+
+    public int getMailboxCapacity() {
+        return mailboxCapacity;
+    }
+
+    public int getMailboxHighWater() {
+        return mailboxHighWater;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getDisconnectAfterSeconds() {
+        return disconnectAfterSeconds;
+    }
+
+    public int getBatchWindowMillis() {
+        return batchWindowMillis;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getNameHistoryLimit() {
+        return nameHistoryLimit;
+    }
+
+    public int getNameReservationMinutes() {
+        return nameReservationMinutes;
+    }
+
+    public int getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    public int getSweepIntervalSeconds() {
+        return sweepIntervalSeconds;
+    }
+
+    /** Directory holding the message log segments. */
+    public String getLogDir() {
+        return logDir;
+    }
+
+    public int getLogSegmentBytes() {
+        return logSegmentMegabytes * 1024 * 1024;
+    }
+
+    /** Recent messages kept in memory per room for history requests. */
+    public int getHistoryCacheSize() {
+        return historyCacheSize;
+    }
+
+    /** Port of the NIO transport, or 0 to serve RMI only. */
+    public int getNioPort() {
+        return nioPort;
+    }
+
+    /**
+     * Socket factory for exporting the service, or null for RMI's plain sockets, the
+     * default. Tuned and TLS sockets are opt-in: clients from before them cannot load
+     * the factory class and so cannot connect.
+     */
+    public ChatSocketFactory getSocketFactory() {
+        return switch (rmiSockets) {
+            case "tls" -> tlsSockets;
+            case "tuned" -> new TunedSocketFactory(tcpNoDelay, tcpKeepAlive, socketBufferKilobytes * 1024, compressThreshold);
+            default -> null;
+        };
+    }
+
+    /** How many client message ids the server remembers to drop retried sends. */
+    public int getDedupWindowSize() {
+        return dedupWindowSize;
+    }
+
+    /** How long a client message id is remembered. */
+    public int getDedupWindowSeconds() {
+        return dedupWindowSeconds;
+    }
+
+    /** Messages, renames and room changes per second one sender may keep up, or 0 for no limit. */
+    public double getSenderRate() {
+        return senderRate;
+    }
+
+    /** How many of those a sender may make at once after being quiet. */
+    public int getSenderBurst() {
+        return senderBurst;
+    }
+
+    /** The same calls per second from all senders together, or 0 for no limit. */
+    public double getServerRate() {
+        return serverRate;
+    }
+
+    public int getServerBurst() {
+        return serverBurst;
+    }
+
+    /** Directory holding private messages for users who are offline. */
+    public String getOfflineDir() {
+        return offlineDir;
+    }
+
+    /** How many private messages may wait for one offline user. */
+    public int getOfflineMaxMessages() {
+        return offlineMaxMessages;
+    }
+
+    /** How long a private message waits for an offline user before it is dropped. */
+    public int getOfflineRetentionDays() {
+        return offlineRetentionDays;
+    }
+
+    /** How often socket byte counts are logged, or 0 for never. */
+    public int getStatsIntervalSeconds() {
+        return statsIntervalSeconds;
+    }
+}
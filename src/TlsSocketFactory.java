@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * RMI socket factory that runs every connection over TLS.
+ *
+ * A full handshake costs a certificate exchange and signature for each new RMI
+ * connection, and RMI opens connections freely, callbacks included. So both ends
+ * keep their sessions: the connecting side uses one shared client context, whose
+ * session cache offers earlier sessions back, and the accepting side keeps a sized
+ * server session cache. A reconnect then resumes with an abbreviated handshake.
+ *
+ * The connecting side trusts whatever {@code javax.net.ssl.trustStore} trusts. The
+ * accepting side uses the key store it was created with, or for client callbacks
+ * {@code javax.net.ssl.keyStore}. Compression is deliberately not offered under TLS:
+ * compressing secrets together with attacker-chosen text leaks them.
+ *
+ * Full handshakes are counted where the certificate is chosen, which a resumed
+ * handshake skips; handshakes and their time are counted where the connection is
+ * made.
+ */
+public class TlsSocketFactory implements ChatSocketFactory {
+    private static final long serialVersionUID = 1L;
+
+    private static final AtomicLong FULL_HANDSHAKES = new AtomicLong();
+    private static final AtomicLong CLIENT_HANDSHAKES = new AtomicLong();
+    private static final AtomicLong CLIENT_HANDSHAKE_NANOS = new AtomicLong();
+
+    // Neither travels with the stub; the receiving side picks its own
+    private final transient SSLContext serverContext;
+    private final transient SSLContext clientContext;
+
+    TlsSocketFactory(SSLContext serverContext, SSLContext clientContext) {
+        this.serverContext = serverContext;
+        this.clientContext = clientContext;
+    }
+
+    /**
+     * Server side of an export, with the key pair from {@code keyStore} and a session
+     * cache of {@code sessionCacheSize} sessions kept for {@code sessionTimeoutSeconds}.
+     */
+    public static TlsSocketFactory forServer(Path keyStore, char[] password, int sessionCacheSize,
+            int sessionTimeoutSeconds) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            store.load(in, password);
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password);
+        X509ExtendedKeyManager keyManager = new CountingKeyManager((X509ExtendedKeyManager) keys.getKeyManagers()[0]);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(new KeyManager[] { keyManager }, null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSeconds);
+        return new TlsSocketFactory(context, null);
+    }
+
+    /** Whether {@code javax.net.ssl.keyStore} is set, so this process can accept TLS callbacks. */
+    public static boolean hasSystemKeyStore() {
+        return System.getProperty("javax.net.ssl.keyStore") != null;
+    }
+
+    /** Factory that accepts with the key store from the {@code javax.net.ssl} system properties. */
+    public static TlsSocketFactory fromSystemProperties() throws GeneralSecurityException {
+        return new TlsSocketFactory(SSLContext.getDefault(), null);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        SSLContext context = clientContext;
+        if (context == null) {
+            try {
+                // Shared by every connection in this process, so its session cache can resume
+                context = SSLContext.getDefault();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("No default TLS context", e);
+            }
+        }
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket();
+        socket.setTcpNoDelay(true);
+        long start = System.nanoTime();
+        socket.connect(new InetSocketAddress(host, port));
+        // Handshake now so a bad certificate fails the connect rather than the first call
+        socket.startHandshake();
+        CLIENT_HANDSHAKES.incrementAndGet();
+        CLIENT_HANDSHAKE_NANOS.addAndGet(System.nanoTime() - start);
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        if (serverContext == null) {
+            throw new IOException("TLS factory has no key store to accept connections with");
+        }
+        return serverContext.getServerSocketFactory().createServerSocket(port);
+    }
+
+    // Every copy connects the same way, so RMI may share connections between them
+    @Override
+    public boolean equals(Object o) {
+        return o != null && o.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "TLS";
+    }
+
+    /** Handshakes this process accepted that needed its certificate, i.e. were not resumed. */
+    public static long getFullHandshakes() {
+        return FULL_HANDSHAKES.get();
+    }
+
+    /** Connections this process made, each with one handshake. */
+    public static long getClientHandshakes() {
+        return CLIENT_HANDSHAKES.get();
+    }
+
+    /** Total time spent connecting and handshaking on connections this process made. */
+    public static long getClientHandshakeNanos() {
+        return CLIENT_HANDSHAKE_NANOS.get();
+    }
+
+    // Certificate selection only happens in a full handshake
+    private static class CountingKeyManager extends X509ExtendedKeyManager {
+        private final X509ExtendedKeyManager keys;
+
+        CountingKeyManager(X509ExtendedKeyManager keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            String alias = keys.chooseServerAlias(keyType, issuers, socket);
+            if (alias != null) {
+                FULL_HANDSHAKES.incrementAndGet();
+            }
+            return alias;
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            String alias = keys.chooseEngineServerAlias(keyType, issuers, engine);
+            if (alias != null) {
+                FULL_HANDSHAKES.incrementAndGet();
+            }
+            return alias;
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return keys.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return keys.getClientAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+            return keys.chooseClientAlias(keyTypes, issuers, socket);
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return keys.getCertificateChain(alias);
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            return keys.getPrivateKey(alias);
+        }
+    }
+}
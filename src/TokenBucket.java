@@ -0,0 +1,49 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that refills continuously at a fixed rate up to a burst size, and
+ * takes no lock.
+ *
+ * The whole state is one number: the time at which the bucket will be full again.
+ * Taking a token moves that time one refill interval later, starting from now if it
+ * has already passed; the bucket is empty when the move would put it more than a
+ * burst's worth of intervals ahead of now. A call is one read and one
+ * compare-and-set, and there is no refill thread.
+ */
+public class TokenBucket {
+    private final long intervalNanos;
+    private final long capacityNanos;
+    private final AtomicLong fullAt;
+
+    public TokenBucket(double tokensPerSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / tokensPerSecond));
+        this.capacityNanos = intervalNanos * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /** Takes a token if there is one. */
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long full = fullAt.get();
+            long next = Math.max(full, now) + intervalNanos;
+            if (next - now > capacityNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+
+    /** Whichever of the two has fewer tokens left. */
+    public static TokenBucket emptier(TokenBucket a, TokenBucket b) {
+        return a.fullAt.get() - b.fullAt.get() >= 0 ? a : b;
+    }
+
+    /** Whether no tokens are taken, so the bucket could be dropped without losing anything. */
+    public boolean isFull() {
+        return fullAt.get() - System.nanoTime() <= 0;
+    }
+}
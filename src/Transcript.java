@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The messages shown for one room, oldest first, with the height each takes on screen.
+ *
+ * Rows live in fixed-size blocks that know their own total height, so finding the row
+ * at a given y adds up a few hundred block totals rather than every row, and a history
+ * page added at the top only creates blocks instead of shifting every row. A row's
+ * height is measured when it is first painted and kept until the width or font
+ * changes; until then it counts as one estimated line.
+ *
+ * Only the messages themselves are kept, not their layout, and at most
+ * {@link #MAX_ROWS} of them: past that the oldest rows are dropped.
+ */
+public class Transcript {
+    public static final int MAX_ROWS = 200_000;
+    private static final int BLOCK_ROWS = 256;
+
+    private static class Block {
+        final ChatMessage[] rows = new ChatMessage[BLOCK_ROWS];
+        final int[] heights = new int[BLOCK_ROWS]; // 0 until measured
+        int first;
+        int end;
+        int measuredHeight;
+        int measuredRows;
+
+        Block(int start) {
+            first = start;
+            end = start;
+        }
+
+        int size() {
+            return end - first;
+        }
+
+        int height(int estimate) {
+            return measuredHeight + (size() - measuredRows) * estimate;
+        }
+
+        void clearHeight(int slot) {
+            if (heights[slot] > 0) {
+                measuredHeight -= heights[slot];
+                measuredRows--;
+                heights[slot] = 0;
+            }
+        }
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+    private int size;
+    private int estimate = 16;
+    // Block of the last row looked up and the index of its first row; rows are mostly visited in order
+    private Block found;
+    private int foundStart;
+
+    public int size() {
+        return size;
+    }
+
+    /** Adds a message at the bottom; false if that dropped the oldest row. */
+    public boolean add(ChatMessage message) {
+        Block last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (last == null || last.end == BLOCK_ROWS) {
+            last = new Block(0);
+            blocks.add(last);
+        }
+        last.rows[last.end++] = message;
+        size++;
+        found = null;
+        if (size <= MAX_ROWS) {
+            return true;
+        }
+        Block first = blocks.get(0);
+        first.clearHeight(first.first);
+        first.rows[first.first++] = null;
+        size--;
+        if (first.size() == 0) {
+            blocks.remove(0);
+        }
+        return false;
+    }
+
+    /** Puts older messages, oldest first, above everything already here, as many as fit. */
+    public void addFirst(List<ChatMessage> messages) {
+        found = null;
+        for (int i = messages.size() - 1; i >= 0 && size < MAX_ROWS; i--) {
+            Block first = blocks.isEmpty() ? null : blocks.get(0);
+            if (first == null || first.first == 0) {
+                first = new Block(BLOCK_ROWS);
+                blocks.add(0, first);
+            }
+            first.rows[--first.first] = messages.get(i);
+            size++;
+        }
+    }
+
+    public ChatMessage get(int index) {
+        Block block = blockOf(index);
+        return block.rows[block.first + index - foundStart];
+    }
+
+    /** Measured height of the row, or 0 if it has not been painted at the current width. */
+    public int getHeight(int index) {
+        Block block = blockOf(index);
+        return block.heights[block.first + index - foundStart];
+    }
+
+    public void setHeight(int index, int height) {
+        Block block = blockOf(index);
+        int slot = block.first + index - foundStart;
+        block.clearHeight(slot);
+        block.heights[slot] = height;
+        block.measuredHeight += height;
+        block.measuredRows++;
+    }
+
+    /** Forgets every measured height, after the width or font has changed. */
+    public void clearHeights(int estimate) {
+        this.estimate = estimate;
+        for (Block block : blocks) {
+            Arrays.fill(block.heights, 0);
+            block.measuredHeight = 0;
+            block.measuredRows = 0;
+        }
+    }
+
+    public int getTotalHeight() {
+        int total = 0;
+        for (Block block : blocks) {
+            total += block.height(estimate);
+        }
+        return total;
+    }
+
+    /** Index of the row covering {@code y}, or {@link #size()} below the last row. */
+    public int indexAt(int y) {
+        int index = 0;
+        int top = 0;
+        for (Block block : blocks) {
+            int height = block.height(estimate);
+            if (y < top + height) {
+                for (int slot = block.first; slot < block.end; slot++) {
+                    int rowHeight = block.heights[slot] > 0 ? block.heights[slot] : estimate;
+                    if (y < top + rowHeight) {
+                        return index + slot - block.first;
+                    }
+                    top += rowHeight;
+                }
+            }
+            top += height;
+            index += block.size();
+        }
+        return size;
+    }
+
+    /** Y of the top of the row. */
+    public int top(int index) {
+        int top = 0;
+        for (Block block : blocks) {
+            if (index < block.size()) {
+                for (int slot = block.first; slot < block.first + index; slot++) {
+                    top += block.heights[slot] > 0 ? block.heights[slot] : estimate;
+                }
+                return top;
+            }
+            top += block.height(estimate);
+            index -= block.size();
+        }
+        return top;
+    }
+
+    private Block blockOf(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+        }
+        if (found != null && index >= foundStart && index < foundStart + found.size()) {
+            return found;
+        }
+        int start = 0;
+        for (Block block : blocks) {
+            if (index < start + block.size()) {
+                found = block;
+                foundStart = start;
+                return block;
+            }
+            start += block.size();
+        }
+        throw new IllegalStateException("Row count out of step with blocks");
+    }
+}
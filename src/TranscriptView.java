@@ -0,0 +1,246 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.TextLayout;
+import java.text.AttributedCharacterIterator;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Chat transcript that only lays out and paints the rows in view.
+ *
+ * A text pane keeps styled elements and views for every message it has ever shown
+ * and reflows all of them when the width changes. This keeps just the messages, in a
+ * {@link Transcript}: a row is turned into text by {@code rows}, wrapped and measured
+ * when it first scrolls into view, and from then on only its height is remembered.
+ * The wrapped lines of the last few hundred rows painted are kept, which covers
+ * scrolling back and forth.
+ *
+ * Rows not yet measured count as one line, so measuring the rows above the one at
+ * the top of the view would push it down; the view moves with it instead. At the
+ * bottom the view stays at the bottom.
+ */
+public class TranscriptView extends JComponent implements Scrollable {
+    private static final int ROW_GAP = 2;
+    private static final int LAID_OUT_ROWS = 256;
+    private static final Insets PADDING = new Insets(6, 8, 6, 8);
+
+    private final Function<ChatMessage, AttributedString> rows;
+    private final Map<ChatMessage, List<TextLayout>> laidOut = new LinkedHashMap<>(LAID_OUT_ROWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ChatMessage, List<TextLayout>> eldest) {
+            return size() > LAID_OUT_ROWS;
+        }
+    };
+    private Transcript transcript = new Transcript();
+    private int layoutWidth = -1;
+    private int topRow = -1; // first row in view at the last paint
+
+    public TranscriptView(Function<ChatMessage, AttributedString> rows) {
+        this.rows = rows;
+    }
+
+    public Transcript getTranscript() {
+        return transcript;
+    }
+
+    public void setTranscript(Transcript transcript) {
+        this.transcript = transcript;
+        // Its heights may be for another width
+        invalidateLayout();
+    }
+
+    /** Call after rows were added to the transcript shown. */
+    public void rowsAdded() {
+        topRow = -1;
+        revalidate();
+        repaint();
+    }
+
+    /** Whether the last row is in view, or there are too few rows to scroll. */
+    public boolean isAtEnd() {
+        Rectangle visible = getVisibleRect();
+        return visible.y + visible.height >= getHeight();
+    }
+
+    public void scrollToEnd() {
+        revalidate();
+        SwingUtilities.invokeLater(() -> scrollRectToVisible(new Rectangle(0, getHeight() - 1, 1, 1)));
+    }
+
+    /** The message shown at {@code point}, or null. */
+    public ChatMessage messageAt(Point point) {
+        int index = transcript.indexAt(point.y - PADDING.top);
+        return index < transcript.size() ? transcript.get(index) : null;
+    }
+
+    /** Drops every wrapped row and measured height, for when the rows would render differently. */
+    public void invalidateLayout() {
+        layoutWidth = -1;
+        topRow = -1;
+        laidOut.clear();
+        revalidate();
+        repaint();
+    }
+
+    @Override
+    public void setFont(Font font) {
+        super.setFont(font);
+        invalidateLayout();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (isPreferredSizeSet()) {
+            return super.getPreferredSize();
+        }
+        return new Dimension(PADDING.left + PADDING.right,
+                PADDING.top + transcript.getTotalHeight() + PADDING.bottom);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            Map<?, ?> desktopHints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+            if (desktopHints != null) {
+                g2.addRenderingHints(desktopHints);
+            }
+            FontRenderContext frc = getFontMetrics(getFont()).getFontRenderContext();
+            Rectangle visible = getVisibleRect();
+            boolean atEnd = isAtEnd();
+            int shift = measure(visible, frc);
+
+            int height = getPreferredSize().height;
+            if (height != getHeight()) {
+                revalidate();
+                if (atEnd) {
+                    scrollToEnd();
+                } else if (shift != 0 && getParent() instanceof JViewport viewport) {
+                    // Grow now so the moved position is valid, and paint what it will show
+                    setSize(getWidth(), height);
+                    Point position = viewport.getViewPosition();
+                    viewport.setViewPosition(new Point(position.x, position.y + shift));
+                    g2.translate(0, -shift);
+                }
+            }
+
+            Rectangle clip = g2.getClipBounds();
+            g2.setColor(getForeground());
+            int index = transcript.indexAt(clip.y - PADDING.top);
+            int top = PADDING.top + transcript.top(index);
+            for (; index < transcript.size() && top < clip.y + clip.height; index++) {
+                float y = top;
+                for (TextLayout line : lines(transcript.get(index), frc)) {
+                    if (line == null) {
+                        y += g2.getFontMetrics(getFont()).getHeight();
+                        continue;
+                    }
+                    y += line.getAscent();
+                    line.draw(g2, PADDING.left, y);
+                    y += line.getDescent() + line.getLeading();
+                }
+                top += height(index, frc);
+            }
+            topRow = transcript.indexAt(getVisibleRect().y - PADDING.top);
+        } finally {
+            g2.dispose();
+        }
+    }
+
+    // Measures the rows in view; returns how far that moved the row that was at the top
+    private int measure(Rectangle visible, FontRenderContext frc) {
+        int width = Math.max(1, getWidth() - PADDING.left - PADDING.right);
+        if (width != layoutWidth) {
+            layoutWidth = width;
+            laidOut.clear();
+            transcript.clearHeights(getFontMetrics(getFont()).getHeight() + ROW_GAP);
+        }
+        int anchor = topRow >= 0 && topRow < transcript.size() ? topRow : -1;
+        int anchorTop = anchor >= 0 ? transcript.top(anchor) : 0;
+
+        int index = transcript.indexAt(visible.y - PADDING.top);
+        int top = PADDING.top + transcript.top(index);
+        for (; index < transcript.size() && top < visible.y + visible.height; index++) {
+            top += height(index, frc);
+        }
+        return anchor >= 0 ? transcript.top(anchor) - anchorTop : 0;
+    }
+
+    private int height(int index, FontRenderContext frc) {
+        int measured = transcript.getHeight(index);
+        if (measured > 0) {
+            return measured;
+        }
+        float height = ROW_GAP;
+        for (TextLayout line : lines(transcript.get(index), frc)) {
+            height += line == null ? getFontMetrics(getFont()).getHeight()
+                    : line.getAscent() + line.getDescent() + line.getLeading();
+        }
+        measured = (int) Math.ceil(height);
+        transcript.setHeight(index, measured);
+        return measured;
+    }
+
+    // Wrapped to the width; a line break in the message starts a new line, null for an empty one
+    private List<TextLayout> lines(ChatMessage message, FontRenderContext frc) {
+        List<TextLayout> lines = laidOut.get(message);
+        if (lines != null) {
+            return lines;
+        }
+        lines = new ArrayList<>(1);
+        AttributedCharacterIterator text = rows.apply(message).getIterator();
+        LineBreakMeasurer measurer = new LineBreakMeasurer(text, frc);
+        int end = text.getEndIndex();
+        int position = text.getBeginIndex();
+        while (position < end) {
+            int limit = position;
+            while (limit < end && text.setIndex(limit) != '\n') {
+                limit++;
+            }
+            if (limit == position) {
+                lines.add(null);
+            } else {
+                measurer.setPosition(position);
+                while (measurer.getPosition() < limit) {
+                    lines.add(measurer.nextLayout(layoutWidth, limit, false));
+                }
+            }
+            position = limit + 1;
+        }
+        laidOut.put(message, lines);
+        return lines;
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return getFontMetrics(getFont()).getHeight() + ROW_GAP;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        int line = getFontMetrics(getFont()).getHeight() + ROW_GAP;
+        return Math.max(line, (orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width) - line);
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        // Fill a viewport taller than the rows so the background covers it
+        return getParent() instanceof JViewport viewport && viewport.getHeight() > getPreferredSize().height;
+    }
+}
@@ -0,0 +1,226 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Objects;
+
+/**
+ * RMI socket factory with configurable TCP options, optional compression and
+ * per-connection byte counters ({@link ConnectionStats}).
+ *
+ * An object is exported with the same factory on both ends: the client side is
+ * serialized into the stub, so whoever calls the object connects with the options
+ * chosen by the side that exported it. Equal factories let RMI reuse connections,
+ * so the factory is a value type.
+ *
+ * With a compression threshold above zero, both directions are framed by
+ * {@link BlockOutputStream} and {@link BlockInputStream}; only calls and returns
+ * of at least that many bytes are deflated.
+ */
+public class TunedSocketFactory implements ChatSocketFactory {
+    private static final long serialVersionUID = 1L;
+
+    /** TCP_NODELAY and keepalive on, OS buffer sizes, deflate from 1 KB. */
+    public static final TunedSocketFactory DEFAULT = new TunedSocketFactory(true, true, 0, 1024);
+
+    private final boolean noDelay;
+    private final boolean keepAlive;
+    private final int bufferBytes; // 0 keeps the OS default
+    private final int compressThreshold; // 0 disables compression
+
+    public TunedSocketFactory(boolean noDelay, boolean keepAlive, int bufferBytes, int compressThreshold) {
+        this.noDelay = noDelay;
+        this.keepAlive = keepAlive;
+        this.bufferBytes = bufferBytes;
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        TunedSocket socket = new TunedSocket();
+        // Buffer sizes have to be set before connecting to affect the TCP window
+        socket.configure();
+        socket.connect(new InetSocketAddress(host, port));
+        socket.opened();
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket server = new ServerSocket() {
+            @Override
+            public Socket accept() throws IOException {
+                TunedSocket socket = new TunedSocket();
+                implAccept(socket);
+                socket.configure();
+                socket.opened();
+                return socket;
+            }
+        };
+        if (bufferBytes > 0) {
+            // Accepted sockets inherit this, and it must be set before bind to matter
+            server.setReceiveBufferSize(bufferBytes);
+        }
+        server.bind(new InetSocketAddress(port));
+        return server;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        TunedSocketFactory other = (TunedSocketFactory) o;
+        return noDelay == other.noDelay && keepAlive == other.keepAlive
+                && bufferBytes == other.bufferBytes && compressThreshold == other.compressThreshold;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(noDelay, keepAlive, bufferBytes, compressThreshold);
+    }
+
+    @Override
+    public String toString() {
+        return "nodelay=" + noDelay + " keepalive=" + keepAlive
+                + " buffer=" + (bufferBytes > 0 ? bufferBytes + " B" : "default")
+                + " compress=" + (compressThreshold > 0 ? ">= " + compressThreshold + " B" : "off");
+    }
+
+    private class TunedSocket extends Socket {
+        private ConnectionStats stats;
+        private InputStream in;
+        private OutputStream out;
+
+        void configure() throws IOException {
+            setTcpNoDelay(noDelay);
+            setKeepAlive(keepAlive);
+            if (bufferBytes > 0) {
+                setSendBufferSize(bufferBytes);
+                setReceiveBufferSize(bufferBytes);
+            }
+        }
+
+        void opened() {
+            stats = ConnectionStats.open(String.valueOf(getRemoteSocketAddress()));
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                InputStream counted = new CountingInputStream(super.getInputStream(), stats);
+                // Buffered so block headers do not cost a read call per byte
+                in = compressThreshold > 0 ? new BlockInputStream(new BufferedInputStream(counted), stats) : counted;
+            }
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                OutputStream counted = new CountingOutputStream(super.getOutputStream(), stats);
+                out = compressThreshold > 0 ? new BlockOutputStream(counted, compressThreshold, stats) : counted;
+            }
+            return out;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (stats != null) {
+                stats.close();
+            }
+            super.close();
+        }
+    }
+
+    // Counts wire bytes, and payload bytes too when nothing sits on top to count them
+    private class CountingInputStream extends InputStream {
+        private final InputStream in;
+        private final ConnectionStats stats;
+
+        CountingInputStream(InputStream in, ConnectionStats stats) {
+            this.in = in;
+            this.stats = stats;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int n = in.read(bytes, offset, length);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void counted(int n) {
+            stats.wireIn.addAndGet(n);
+            if (compressThreshold <= 0) {
+                stats.payloadIn.addAndGet(n);
+            }
+        }
+    }
+
+    private class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final ConnectionStats stats;
+
+        CountingOutputStream(OutputStream out, ConnectionStats stats) {
+            this.out = out;
+            this.stats = stats;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counted(1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            counted(length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private void counted(int n) {
+            stats.wireOut.addAndGet(n);
+            if (compressThreshold <= 0) {
+                stats.payloadOut.addAndGet(n);
+            }
+        }
+    }
+}
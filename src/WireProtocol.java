@@ -0,0 +1,328 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary frames for the NIO transport.
+ *
+ * Every frame is an int length followed by that many bytes: a kind byte, a call id
+ * and a payload. Calls and callbacks carry a method name and its arguments, responses
+ * carry one value and errors carry a message. Values are tagged, so one codec covers
+ * every argument and return type of {@link ChatService} and {@link ClientCallback}.
+ * A {@link ClientCallback} argument is sent as a {@link CallbackRef}, the calling
+ * client's session id: the server stands in a callback that writes to the connection
+ * the call came on. The session outlives the connection, so a client that reconnects
+ * is still recognised as the owner of the name it registered.
+ *
+ * A message is encoded once, however many clients it goes to: its bytes are cached
+ * on the {@link ChatMessage} and {@link #messagesCallback} only adds a small header
+ * in front of them.
+ */
+public class WireProtocol {
+    public static final byte CALL = 1;
+    public static final byte RESPONSE = 2;
+    public static final byte ERROR = 3;
+    public static final byte CALLBACK = 4;
+
+    public static final int LENGTH_BYTES = 4;
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    /** Sent and decoded in place of a {@link ClientCallback} argument. */
+    public static class CallbackRef {
+        public final long session;
+
+        public CallbackRef(long session) {
+            this.session = session;
+        }
+    }
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_BOOLEAN = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_LIST = 5;
+    private static final byte TAG_MAP = 6;
+    private static final byte TAG_MESSAGE = 7;
+    private static final byte TAG_PRESENCE = 8;
+    private static final byte TAG_CALLBACK = 9;
+
+    private static final byte[] RECEIVE_MESSAGES = "receiveMessages".getBytes(StandardCharsets.UTF_8);
+
+    public static class Frame {
+        public final byte kind;
+        public final int id;
+        public final String method; // calls and callbacks
+        public final Object[] args; // calls and callbacks
+        public final Object value;  // responses; the message for errors
+
+        Frame(byte kind, int id, String method, Object[] args, Object value) {
+            this.kind = kind;
+            this.id = id;
+            this.method = method;
+            this.args = args;
+            this.value = value;
+        }
+    }
+
+    /** Methods are looked up by name and argument count; neither interface overloads on types. */
+    public static String methodKey(String name, int argumentCount) {
+        return name + "/" + argumentCount;
+    }
+
+    public static ByteBuffer call(byte kind, int id, String method, Object[] args) {
+        return frame(kind, id, out -> {
+            writeString(out, method);
+            int count = args == null ? 0 : args.length;
+            out.writeByte(count);
+            for (int i = 0; i < count; i++) {
+                writeValue(out, args[i]);
+            }
+        });
+    }
+
+    public static ByteBuffer response(int id, Object value) {
+        return frame(RESPONSE, id, out -> writeValue(out, value));
+    }
+
+    public static ByteBuffer error(int id, String message) {
+        return frame(ERROR, id, out -> writeString(out, message));
+    }
+
+    /**
+     * A {@link ClientCallback#receiveMessages} callback frame as a header followed by
+     * each message's shared encoding. Only the header and the buffer views are new;
+     * the message bytes are not copied.
+     */
+    public static ByteBuffer[] messagesCallback(List<ChatMessage> messages) {
+        ByteBuffer[] buffers = new ByteBuffer[messages.size() + 1];
+        int messageBytes = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            byte[] encoded = messages.get(i).wireForm();
+            buffers[i + 1] = ByteBuffer.wrap(encoded);
+            messageBytes += encoded.length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(LENGTH_BYTES + 1 + 4 + 4 + RECEIVE_MESSAGES.length + 1 + 1 + 4);
+        header.putInt(header.capacity() - LENGTH_BYTES + messageBytes);
+        header.put(CALLBACK).putInt(0);
+        header.putInt(RECEIVE_MESSAGES.length).put(RECEIVE_MESSAGES);
+        header.put((byte) 1).put(TAG_LIST).putInt(messages.size());
+        buffers[0] = header.flip();
+        return buffers;
+    }
+
+    static byte[] encodeMessage(ChatMessage message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(TAG_MESSAGE);
+            message.writeCompact(out, null);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes one frame body, i.e. everything after the length prefix. Counts and
+     * lengths are checked against what is left of the body before anything is
+     * allocated for them, so a bad frame costs no more memory than its own size.
+     */
+    public static Frame decode(ByteBuffer body) throws ProtocolException {
+        byte kind = body.get();
+        int id = body.getInt();
+        switch (kind) {
+            case CALL, CALLBACK -> {
+                String method = readString(body);
+                Object[] args = new Object[count(body, body.get())];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = readValue(body);
+                }
+                return new Frame(kind, id, method, args, null);
+            }
+            case RESPONSE -> {
+                return new Frame(kind, id, null, null, readValue(body));
+            }
+            case ERROR -> {
+                return new Frame(kind, id, null, null, readString(body));
+            }
+            default -> throw new ProtocolException("Unknown frame kind " + kind);
+        }
+    }
+
+    private interface Payload {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private static ByteBuffer frame(byte kind, int id, Payload payload) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); // length, filled in below
+            out.writeByte(kind);
+            out.writeInt(id);
+            payload.writeTo(out);
+            ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+            frame.putInt(0, frame.remaining() - LENGTH_BYTES);
+            return frame;
+        } catch (IOException e) {
+            // Only reachable if the in-memory stream fails
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof String s) {
+            out.writeByte(TAG_STRING);
+            writeString(out, s);
+        } else if (value instanceof Boolean b) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean(b);
+        } else if (value instanceof Integer i) {
+            out.writeByte(TAG_INT);
+            out.writeInt(i);
+        } else if (value instanceof Long l) {
+            out.writeByte(TAG_LONG);
+            out.writeLong(l);
+        } else if (value instanceof List<?> list) {
+            out.writeByte(TAG_LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Map<?, ?> map) {
+            out.writeByte(TAG_MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof ChatMessage message) {
+            out.write(message.wireForm());
+        } else if (value instanceof PresenceUpdate update) {
+            out.writeByte(TAG_PRESENCE);
+            out.writeLong(update.getBaseVersion());
+            out.writeLong(update.getVersion());
+            out.writeBoolean(update.isSnapshot());
+            writeValue(out, update.getJoined());
+            writeValue(out, update.getLeft());
+            writeValue(out, update.getRenamed());
+        } else if (value instanceof CallbackRef ref) {
+            out.writeByte(TAG_CALLBACK);
+            out.writeLong(ref.session);
+        } else {
+            throw new IllegalArgumentException("Cannot send a " + value.getClass().getName());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object readValue(ByteBuffer in) throws ProtocolException {
+        byte tag = in.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString(in);
+            case TAG_BOOLEAN:
+                return in.get() != 0;
+            case TAG_INT:
+                return in.getInt();
+            case TAG_LONG:
+                return in.getLong();
+            case TAG_LIST: {
+                int size = count(in, in.getInt());
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case TAG_MAP: {
+                int size = count(in, in.getInt());
+                Map<Object, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(readValue(in), readValue(in));
+                }
+                return map;
+            }
+            case TAG_MESSAGE: {
+                ChatMessage message = new ChatMessage();
+                try {
+                    message.readCompact(new DataInputStream(new BufferInput(in)), null);
+                } catch (IOException e) {
+                    throw new ProtocolException("Bad message: " + e);
+                }
+                return message;
+            }
+            case TAG_PRESENCE: {
+                long baseVersion = in.getLong();
+                long version = in.getLong();
+                boolean snapshot = in.get() != 0;
+                List<String> joined = (List<String>) readValue(in);
+                List<String> left = (List<String>) readValue(in);
+                Map<String, String> renamed = (Map<String, String>) readValue(in);
+                return new PresenceUpdate(baseVersion, version, snapshot, joined, left, renamed);
+            }
+            case TAG_CALLBACK:
+                return new CallbackRef(in.getLong());
+            default:
+                throw new ProtocolException("Unknown value tag " + tag);
+        }
+    }
+
+    // Lets the stream-based message codec read straight from a frame
+    private static class BufferInput extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws ProtocolException {
+        byte[] bytes = new byte[count(in, in.getInt())];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Every element takes at least a byte, so a count beyond the bytes left is a lie
+    private static int count(ByteBuffer in, int count) throws ProtocolException {
+        if (count < 0 || count > in.remaining()) {
+            throw new ProtocolException("Bad count " + count + " with " + in.remaining() + " bytes left");
+        }
+        return count;
+    }
+}